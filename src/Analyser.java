@@ -2,11 +2,14 @@ import java.util.*;
 public final class Analyser {
 
     Tokenizer tokenizer;
-    List<Instruction> global_instructions;
+    InstructionBuffer global_instructions;
     int global_slot;
 
-    /** 当前偷看的 token */
-    Token peekedToken = null;
+    /** 紧凑的 token 流，按下标读取 */
+    TokenBuffer tokens;
+
+    /** 下一个要读的 token 的下标 */
+    int cursor = 0;
 
     /** 符号表 */
     Definition def_table;
@@ -17,11 +20,15 @@ public final class Analyser {
 
     // 暂存函数的相关内容
     Function function;
-    List<Instruction> function_body;
+    InstructionBuffer function_body;
     List<SymbolEntry> param_table;
     int param_slot;
     List<SymbolEntry> local_table;
+    // 栈帧里局部变量的 slot 数，等于同时存在的局部变量最多时的个数
     int local_slot;
+    // 正在使用的 slot，作用域结束时释放，兄弟作用域可以复用
+    BitSet used_slots;
+    List<Integer> uninitialized_locals;
     TokenType return_type;
     private boolean onAssign;
     private int while_level;
@@ -31,7 +38,8 @@ public final class Analyser {
 
     public Analyser(Tokenizer tokenizer) {
         this.tokenizer = tokenizer;
-        this.global_instructions = new ArrayList<>();
+        this.tokens = new TokenBuffer(tokenizer.getIter());
+        this.global_instructions = newInstructions();
     }
 
     public void analyse() throws CompileError {
@@ -39,38 +47,34 @@ public final class Analyser {
     }
 
     /**
-     * 查看下一个 Token
+     * 查看下一个 Token，需要时才让 tokenizer 往 token 流里写
      *
      * @throws TokenizeError
-     * @return
+     * @return token 在 token 流中的下标
      */
-    private Token peek() throws TokenizeError {
-        if (peekedToken == null) {
-            peekedToken = tokenizer.nextToken();
+    private int peek() throws TokenizeError {
+        while (tokens.size() <= cursor) {
+            tokenizer.nextToken(tokens);
         }
-        return peekedToken;
+        return cursor;
     }
 
     /**
      * 获取下一个 Token
      *
      * @throws TokenizeError
+     * @return token 在 token 流中的下标
      */
-    private Token next() throws TokenizeError {
-        if (peekedToken != null) {
-            var token = peekedToken;
-            peekedToken = null;
-            return token;
-        } else {
-            return tokenizer.nextToken();
-        }
+    private int next() throws TokenizeError {
+        peek();
+        return cursor++;
     }
 
     private boolean check(TokenType... tt) throws TokenizeError {
-        TokenType token = peek().getTokenType();
+        TokenType token = tokens.getTokenType(peek());
         while(token == TokenType.COMMENT){
             next();
-            token = peek().getTokenType();
+            token = tokens.getTokenType(peek());
         }
         for(TokenType t: tt){
             if(token == t){
@@ -80,18 +84,18 @@ public final class Analyser {
         return false;
     }
 
-    private Token expect(TokenType... tt) throws CompileError {
-        TokenType token = peek().getTokenType();
+    private int expect(TokenType... tt) throws CompileError {
+        TokenType token = tokens.getTokenType(peek());
         while(token == TokenType.COMMENT){
             next();
-            token = peek().getTokenType();
+            token = tokens.getTokenType(peek());
         }
         for (TokenType t : tt) {
             if (token == t) {
                 return next();
             }
         }
-        throw new ExpectedTokenError(Format.generateList(tt), peek());
+        throw new ExpectedTokenError(Format.generateList(tt), tokens.toToken(peek()));
     }
 
     /**
@@ -114,50 +118,73 @@ public final class Analyser {
         }
     }
 
-    private Instruction getLocalOrParamAddress(Token token) throws AnalyzeError {
-        SymbolEntry sym = this.def_table.getSymbol(token.getValueString());
+    private void addLocalOrParamAddress(int token) throws AnalyzeError {
+        SymbolEntry sym = this.def_table.getSymbol(tokens.getValueString(token));
         if(sym == null)
-            throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
+            throw new AnalyzeError(ErrorCode.NotDeclared, tokens.getStartPos(token));
         if(sym.getType() == SymbolType.Function)
-            throw new AnalyzeError(ErrorCode.FunctionHasNoAddr, token.getStartPos());
+            throw new AnalyzeError(ErrorCode.FunctionHasNoAddr, tokens.getStartPos(token));
         else if(sym.getType() == SymbolType.Param){
-            return new Instruction(Operation.arga, ((long)sym.getId() + this.function.getReturnSlot()));
+            this.addInstruction(Operation.arga, (long)sym.getId() + this.function.getReturnSlot());
         }else if(sym.getType() == SymbolType.Local) {
-            return new Instruction(Operation.loca, (long)sym.getId());
+            this.addInstruction(Operation.loca, sym.getId());
         }else{
-            return new Instruction(Operation.globa, (long)sym.getId());
+            this.addInstruction(Operation.globa, sym.getId());
         }
     }
 
-    private void addInstruction(Instruction ins){
-        if(this.def_table.getLevel() != 0){
-            this.function_body.add(ins);
-        }
-        else{
-            this.global_instructions.add(ins);
-        }
+    // 生成代码用的指令序列，追加时做常量折叠
+    private InstructionBuffer newInstructions(){
+        InstructionBuffer buf = new InstructionBuffer();
+        buf.setFolding(true);
+        return buf;
     }
 
-    private void addAllInstruction(List<Instruction> ins){
+    // 当前正在生成的指令序列，全局的或者函数体的
+    private InstructionBuffer currentInstructions(){
         if(this.def_table.getLevel() != 0){
-            this.function_body.addAll(ins);
+            return this.function_body;
         }
         else{
-            this.global_instructions.addAll(ins);
+            return this.global_instructions;
         }
     }
 
+    private int addInstruction(Operation opt){
+        return currentInstructions().add(opt);
+    }
+
+    private int addInstruction(Operation opt, long num){
+        return currentInstructions().add(opt, num);
+    }
+
     private void functionAddParam(TokenType tt, String name, Pos pos, boolean is_const) throws AnalyzeError {
         SymbolEntry se = this.def_table.addSymbol(this.param_slot++, name, SymbolType.Param, tt, true, is_const, pos, null, 1);
         this.param_table.add(se);
     }
 
     private SymbolEntry functionAddLocal(TokenType tt, String name,Boolean is_init, Boolean is_const, Pos pos, int level) throws AnalyzeError {
-        SymbolEntry se = this.def_table.addSymbol(this.local_slot++, name, SymbolType.Local, tt, is_init, is_const, pos, null, level);
+        // 没有初始化的变量要靠栈帧清零后的 0，只能用从来没用过的 slot，并且一直不释放
+        int slot = is_init ? this.used_slots.nextClearBit(0) : this.local_slot;
+        SymbolEntry se = this.def_table.addSymbol(slot, name, SymbolType.Local, tt, is_init, is_const, pos, null, level);
+        this.used_slots.set(slot);
+        this.local_slot = Math.max(this.local_slot, slot + 1);
         this.local_table.add(se);
+        if(!is_init){
+            this.uninitialized_locals.add(se.getId());
+        }
         return se;
     }
 
+    // 释放这个块（local_table 里 from 之后、这一层）声明的局部变量的 slot
+    private void releaseLocals(int from, int level){
+        for(SymbolEntry se: this.local_table.subList(from, this.local_table.size())){
+            if(se.getLevel() == level && !this.uninitialized_locals.contains(se.getId())){
+                this.used_slots.clear(se.getId());
+            }
+        }
+    }
+
     public Function getStartFunction() throws AnalyzeError {
         return this.def_table.generate(this.global_instructions);
     }
@@ -165,7 +192,7 @@ public final class Analyser {
     private void analyseProgram() throws CompileError {
         this.def_table = new Definition();
         this.expr_stack = new ExprStack();
-        this.global_instructions = new ArrayList<>();
+        this.global_instructions = newInstructions();
         while(!check(TokenType.EOF)){
             if(check(TokenType.FN_KW)){
                 analyseFunction();
@@ -173,7 +200,7 @@ public final class Analyser {
                 analyseDeclStmt(0);
             }else{
                 throw new ExpectedTokenError(
-                    Format.generateList(TokenType.LET_KW, TokenType.CONST_KW, TokenType.FN_KW), peek());
+                    Format.generateList(TokenType.LET_KW, TokenType.CONST_KW, TokenType.FN_KW), tokens.toToken(peek()));
             }
         }
         this.def_table.instruction = this.global_instructions;
@@ -182,18 +209,20 @@ public final class Analyser {
 
     private void analyseFunction() throws CompileError{
         expect(TokenType.FN_KW);
-        Token nameToken = expect(TokenType.IDENT);
+        int nameToken = expect(TokenType.IDENT);
         this.function = null;
-        this.function_body = new ArrayList<>();
+        this.function_body = newInstructions();
         this.param_table = new ArrayList<>();
         this.param_slot = 0;
         this.local_table = new ArrayList<>();
         this.local_slot = 0;
+        this.used_slots = new BitSet();
+        this.uninitialized_locals = new ArrayList<>();
         this.return_type = null;
         this.def_table.level = 1;
         this.onAssign = false;
 
-        Function func = this.def_table.addFunction(nameToken.getValueString(), null, nameToken.getStartPos());
+        Function func = this.def_table.addFunction(tokens.getValueString(nameToken), null, tokens.getStartPos(nameToken));
         this.function = func;
         expect(TokenType.L_PAREN);
         if(!check(TokenType.R_PAREN))
@@ -202,27 +231,31 @@ public final class Analyser {
         func.setParamSlot(this.param_slot);
         expect(TokenType.R_PAREN);
         expect(TokenType.ARROW);
-        Token return_tt = expect(TokenType.VOID_KW, TokenType.INT_KW, TokenType.DOUBLE_KW);
-        this.return_type = return_tt.getTokenType();
+        int return_tt = expect(TokenType.VOID_KW, TokenType.INT_KW, TokenType.DOUBLE_KW);
+        this.return_type = tokens.getTokenType(return_tt);
         func.setReturnType(this.return_type);
-        analyseBlockStmt(return_tt.getTokenType(), 1);
-        if(this.function_body.size() == 0 || this.function_body.get(this.function_body.size() - 1).getOpt() != Operation.ret){
-            this.function_body.add(new Instruction(Operation.ret));
+        analyseBlockStmt(tokens.getTokenType(return_tt), 1);
+        // 最后一条是 ret 但还有跳转跳到函数末尾时，也要补一条 ret
+        if(this.function_body.lastOpt() != Operation.ret || this.function_body.getBarrier() == this.function_body.size()){
+            this.function_body.add(Operation.ret);
         }
         func.setFunctionBody(this.function_body);
         func.setLocals(this.local_table);
         func.setLocalSlot(this.local_slot);
+        func.setUninitializedLocals(this.uninitialized_locals);
     }
 
     // return_type
     private void analyseBlockStmt(TokenType return_type, int level) throws CompileError{
         this.def_table.level = level;
+        int first_local = this.local_table.size();
         expect(TokenType.L_BRACE);
         while(!check(TokenType.R_BRACE)){
             analyseStmt(return_type, level);
         }
         expect(TokenType.R_BRACE);
         // 只能清符号表，不能清函数local表
+        releaseLocals(first_local, level);
         this.def_table.levelDown();
     }
 
@@ -250,7 +283,7 @@ public final class Analyser {
 
     private void analyseExprStmt() throws CompileError{
         TokenType type = analyseExpr();
-        this.addAllInstruction(expr_stack.addAllReset(type));
+        expr_stack.addAllReset(currentInstructions(), type);
         expect(TokenType.SEMICOLON);
     }
 
@@ -260,23 +293,23 @@ public final class Analyser {
             expect(TokenType.MINUS);
             type = analyseExpr();
             if(type == TokenType.INT_KW)
-                this.addInstruction(new Instruction(Operation.neg_i));
+                this.addInstruction(Operation.neg_i);
             else
-                this.addInstruction(new Instruction(Operation.neg_f));
+                this.addInstruction(Operation.neg_f);
         }
         else if(check(TokenType.L_PAREN)){
             type = analyseGroupExpr();
         }
         else if(check(TokenType.IDENT)){
-            Token nameToken = expect(TokenType.IDENT);
+            int nameToken = expect(TokenType.IDENT);
 
             if(check(TokenType.L_PAREN)) {
                 type = analyseCallExpr(nameToken);
             }
             else if(check(TokenType.ASSIGN)) {
-                SymbolEntry se = this.def_table.getSymbol(nameToken.getValueString());
+                SymbolEntry se = this.def_table.getSymbol(tokens.getValueString(nameToken));
                 if(se == null){
-                    throw new AnalyzeError(ErrorCode.NotDeclared, peek().getStartPos());
+                    throw new AnalyzeError(ErrorCode.NotDeclared, tokens.getStartPos(peek()));
                 }
                 type = analyseAssignExpr(se, nameToken);
             }
@@ -289,7 +322,7 @@ public final class Analyser {
         }
         else {
             throw new ExpectedTokenError(Format.generateList(TokenType.MINUS, TokenType.L_PAREN, TokenType.IDENT, TokenType.L_PAREN, TokenType.ASSIGN),
-                next());
+                tokens.toToken(next()));
         }
 
         while(check(TokenType.PLUS, TokenType.MINUS, TokenType.MUL, TokenType.DIV, TokenType.EQ,
@@ -306,46 +339,45 @@ public final class Analyser {
     }
 
     private TokenType analyseLiteralExpr() throws CompileError{
-        Token token = expect(TokenType.UINT_LITERAL, TokenType.DOUBLE_LITERAL, TokenType.STRING_LITERAL, TokenType.CHAR_LITERAL);
-        TokenType tt = token.getTokenType();
+        int token = expect(TokenType.UINT_LITERAL, TokenType.DOUBLE_LITERAL, TokenType.STRING_LITERAL, TokenType.CHAR_LITERAL);
+        TokenType tt = tokens.getTokenType(token);
         if(tt == TokenType.UINT_LITERAL || tt == TokenType.CHAR_LITERAL){
             // 直接push进栈
             int num;
-            num = (int) token.getValue();
-            this.addInstruction(new Instruction(Operation.push, (long)num));
+            num = tokens.getInt(token);
+            this.addInstruction(Operation.push, num);
             return TokenType.INT_KW;
         }
         else if(tt == TokenType.STRING_LITERAL){
-            // 新建全局变量， 变量名是该字符串，变量值也是该字符串
-            int global_index = this.def_table.addGlobal(token.getValueString(),
-                TokenType.STRING_LITERAL, true, true, token.getStartPos(), token.getValueString());
-            this.addInstruction(new Instruction(Operation.push, (long)global_index));
+            // 放进字符串常量池，相同的字符串共用一个全局变量
+            int global_index = this.def_table.addString(tokens.getValueString(token));
+            this.addInstruction(Operation.push, global_index);
             return TokenType.STRING_LITERAL;
         }
         else if(tt == TokenType.DOUBLE_LITERAL){
-            String binary = Long.toBinaryString(Double.doubleToRawLongBits((Double) token.getValue()));
-            this.addInstruction(new Instruction(Operation.push, Format.StringToLong(binary)));
+            String binary = Long.toBinaryString(Double.doubleToRawLongBits(tokens.getDouble(token)));
+            this.addInstruction(Operation.push, Format.StringToLong(binary));
             return TokenType.DOUBLE_KW;
         }
         else{
-            throw new AnalyzeError(ErrorCode.ExpectedToken, token.getStartPos());
+            throw new AnalyzeError(ErrorCode.ExpectedToken, tokens.getStartPos(token));
         }
     }
 
     // todo: 类型转换没写完
     private TokenType analyseAsExpr(TokenType tt) throws CompileError{
         expect(TokenType.AS_KW);
-        TokenType as_tt = expect(TokenType.VOID_KW, TokenType.INT_KW, TokenType.DOUBLE_KW).getTokenType();
+        TokenType as_tt = tokens.getTokenType(expect(TokenType.VOID_KW, TokenType.INT_KW, TokenType.DOUBLE_KW));
         if(tt == TokenType.INT_KW && as_tt == TokenType.DOUBLE_KW){
             // int to double
-            this.addInstruction(new Instruction(Operation.itof));
+            this.addInstruction(Operation.itof);
         }
         else if(tt == TokenType.DOUBLE_KW && as_tt == TokenType.INT_KW){
             // double to int
-            this.addInstruction(new Instruction(Operation.ftoi));
+            this.addInstruction(Operation.ftoi);
         }
         else if(tt != as_tt){
-            throw new AnalyzeError(ErrorCode.AsTypeWrong, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.AsTypeWrong, tokens.getStartPos(peek()));
         }
         while(check(TokenType.AS_KW)){
             as_tt = analyseAsExpr(as_tt);
@@ -354,58 +386,65 @@ public final class Analyser {
     }
 
     private TokenType analyseOperatorExpr(TokenType tt) throws CompileError{
-        Token token = expect(TokenType.PLUS, TokenType.MINUS, TokenType.MUL, TokenType.DIV, TokenType.EQ,
+        int token = expect(TokenType.PLUS, TokenType.MINUS, TokenType.MUL, TokenType.DIV, TokenType.EQ,
             TokenType.NEQ, TokenType.LT, TokenType.GT, TokenType.LE, TokenType.GE);
-        this.addAllInstruction(expr_stack.addTokenAndGenerateInstruction(token.getTokenType(), tt));
+        expr_stack.addTokenAndGenerateInstruction(currentInstructions(), tokens.getTokenType(token), tt);
         TokenType next_tt = analyseExpr();
         if(tt != next_tt || (tt != TokenType.INT_KW && tt != TokenType.DOUBLE_KW)){
-            throw new AnalyzeError(ErrorCode.ExprTypeWrong, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.ExprTypeWrong, tokens.getStartPos(peek()));
         }
         return next_tt;
     }
 
-    private TokenType analyseIdentExpr(Token token) throws CompileError{
-        SymbolEntry se = this.def_table.getSymbol(token.getValueString());
+    private TokenType analyseIdentExpr(int token) throws CompileError{
+        SymbolEntry se = this.def_table.getSymbol(tokens.getValueString(token));
         if(se == null){
-            throw new AnalyzeError(ErrorCode.NotDeclared, token.getStartPos());
+            throw new AnalyzeError(ErrorCode.NotDeclared, tokens.getStartPos(token));
         }
-        if(!this.def_table.getSymbol(token.getValueString()).isInitialized()){
-            throw new AnalyzeError(ErrorCode.NotInitialized, token.getStartPos());
+        if(!this.def_table.getSymbol(tokens.getValueString(token)).isInitialized()){
+            throw new AnalyzeError(ErrorCode.NotInitialized, tokens.getStartPos(token));
         }
-        this.addInstruction(getLocalOrParamAddress(token));
-        this.addInstruction(new Instruction(Operation.load64));
+        // 值已知的常量直接 push，条件里用到时可以在编译时算出来
+        if(se.isConstant() && se.getValue() instanceof Long){
+            this.addInstruction(Operation.push, (Long) se.getValue());
+            return se.getTokenType();
+        }
+        this.addLocalOrParamAddress(token);
+        this.addInstruction(Operation.load64);
         return se.getTokenType();
     }
 
-    private TokenType analyseAssignExpr(SymbolEntry se, Token token) throws CompileError{
+    private TokenType analyseAssignExpr(SymbolEntry se, int token) throws CompileError{
         expect(TokenType.ASSIGN);
         if(this.onAssign){
-            throw new AnalyzeError(ErrorCode.AssignFaild, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.AssignFaild, tokens.getStartPos(peek()));
         }
         if (se.isConstant())
-            throw new AnalyzeError(ErrorCode.AssignToConstant, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.AssignToConstant, tokens.getStartPos(peek()));
 
-        this.addInstruction(getLocalOrParamAddress(token));
+        this.addLocalOrParamAddress(token);
         // 获取值的类型
         TokenType type = analyseExpr();
         TokenType assigned = se.getTokenType();
         // 判断值的类型是否和se相同
         if(type != assigned || (assigned != TokenType.INT_KW && assigned != TokenType.DOUBLE_KW)){
-            throw new AnalyzeError(ErrorCode.AssignTypeWrong, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.AssignTypeWrong, tokens.getStartPos(peek()));
         }
-        this.addAllInstruction(expr_stack.addAllReset(type));
-        System.out.println("ini:: " + token.getValueString());
-        initializeSymbol(token.getValueString(), token.getStartPos());
-        this.addInstruction(new Instruction(Operation.store64));
+        expr_stack.addAllReset(currentInstructions(), type);
+        System.out.println("ini:: " + tokens.getValueString(token));
+        initializeSymbol(tokens.getValueString(token), tokens.getStartPos(token));
+        this.addInstruction(Operation.store64);
         return TokenType.VOID_KW;
     }
 
-    private TokenType analyseCallExpr(Token token) throws CompileError{
+    private TokenType analyseCallExpr(int token) throws CompileError{
         // 返回函数的返回值
-        Function func = this.def_table.getFunction(token.getValueString());
+        Function func = this.def_table.getFunction(tokens.getValueString(token));
 
-        // 分配return的slot
-        this.addInstruction(new Instruction(Operation.stackalloc, (long)func.getReturnSlot()));
+        // 分配return的slot，库函数直接用对应的指令，不需要
+        if(!func.isSTDFunction()){
+            this.addInstruction(Operation.stackalloc, func.getReturnSlot());
+        }
         expect(TokenType.L_PAREN);
         this.expr_stack.operation_stack.push(TokenType.L_PAREN);
         if(!check(TokenType.R_PAREN)) {
@@ -416,11 +455,11 @@ public final class Analyser {
         System.out.println("top  " + this.expr_stack.operation_stack.pop());
 
         if(func.isSTDFunction()){
-            this.addInstruction(new Instruction(Operation.callname, (long)func.getId()));
+            this.addInstruction(func.getSTDOperation());
         }
         else{
 
-            this.addInstruction(new Instruction(Operation.call, (long)this.def_table.getFunctionIndex(func)));
+            this.addInstruction(Operation.call, this.def_table.getFunctionIndex(func));
         }
         return func.getReturnType();
     }
@@ -429,25 +468,25 @@ public final class Analyser {
         int param_num = 1, i = 0;
         TokenType type = analyseExpr();
         if(param_list.get(i++).getTokenType() != type){
-            throw new AnalyzeError(ErrorCode.ExprTypeWrong, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.ExprTypeWrong, tokens.getStartPos(peek()));
         }
         while (!this.expr_stack.operation_stack.empty() && this.expr_stack.operation_stack.peek() != TokenType.L_PAREN) {
-            this.addAllInstruction(this.expr_stack.generateInstruction(this.expr_stack.operation_stack.pop(), type));
+            this.expr_stack.generateInstruction(currentInstructions(), this.expr_stack.operation_stack.pop(), type);
         }
         while(check(TokenType.COMMA)){
             expect(TokenType.COMMA);
             type = analyseExpr();
             if(param_list.get(i++).getTokenType() != type){
-                throw new AnalyzeError(ErrorCode.ExprTypeWrong, peek().getStartPos());
+                throw new AnalyzeError(ErrorCode.ExprTypeWrong, tokens.getStartPos(peek()));
             }
             while (!this.expr_stack.operation_stack.empty() && this.expr_stack.operation_stack.peek() != TokenType.L_PAREN) {
-                this.addAllInstruction(this.expr_stack.generateInstruction(this.expr_stack.operation_stack.pop(), type));
+                this.expr_stack.generateInstruction(currentInstructions(), this.expr_stack.operation_stack.pop(), type);
             }
             param_num++;
         }
         if(param_num != param_list.size()){
             System.out.println("当前参数个数：" + param_num + " ，期望参数个数：" + param_list.size());
-            throw new AnalyzeError(ErrorCode.ParamNumWrong, this.peekedToken.getStartPos());
+            throw new AnalyzeError(ErrorCode.ParamNumWrong, tokens.getStartPos(peek()));
         }
     }
 
@@ -456,19 +495,19 @@ public final class Analyser {
         this.expr_stack.push(TokenType.L_PAREN);
         TokenType type = analyseExpr();
         expect(TokenType.R_PAREN);
-        this.addAllInstruction(this.expr_stack.addTokenAndGenerateInstruction(TokenType.R_PAREN, type));
-        this.addAllInstruction(expr_stack.addAllReset(type));
+        this.expr_stack.addTokenAndGenerateInstruction(currentInstructions(), TokenType.R_PAREN, type);
+        expr_stack.addAllReset(currentInstructions(), type);
         return type;
     }
 
     private TokenType analyseNegateExpr() throws CompileError{
         expect(TokenType.MINUS);
-        this.addInstruction(new Instruction(Operation.push, 0L));
+        this.addInstruction(Operation.push, 0);
         TokenType tt = analyseExpr();
         if(tt == TokenType.INT_KW)
-            this.addInstruction(new Instruction((Operation.sub_i)));
+            this.addInstruction(Operation.sub_i);
         else
-            this.addInstruction(new Instruction((Operation.sub_f)));
+            this.addInstruction(Operation.sub_f);
         return tt;
     }
 
@@ -477,22 +516,22 @@ public final class Analyser {
         if(!check(TokenType.SEMICOLON)){
             // 有返回值
             if(this.return_type == TokenType.VOID_KW){
-                throw new AnalyzeError(ErrorCode.ReturnTypeWrong, peekedToken.getStartPos());
+                throw new AnalyzeError(ErrorCode.ReturnTypeWrong, tokens.getStartPos(peek()));
             }
             // todo: 返回值类型检查
             // 返回值off是0
-            this.addInstruction(new Instruction(Operation.arga, (long)0));
+            this.addInstruction(Operation.arga, 0);
             TokenType type = analyseExpr();
             if(type != this.return_type){
-                throw new AnalyzeError(ErrorCode.ReturnTypeWrong, peek().getStartPos());
+                throw new AnalyzeError(ErrorCode.ReturnTypeWrong, tokens.getStartPos(peek()));
             }
-            this.addAllInstruction(expr_stack.addAllReset(type));
-            this.addInstruction(new Instruction(Operation.store64));
+            expr_stack.addAllReset(currentInstructions(), type);
+            this.addInstruction(Operation.store64);
         }
         else if(this.return_type != TokenType.VOID_KW){
-            throw new AnalyzeError(ErrorCode.ReturnTypeWrong, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.ReturnTypeWrong, tokens.getStartPos(peek()));
         }
-        this.addInstruction(new Instruction(Operation.ret));
+        this.addInstruction(Operation.ret);
         expect(TokenType.SEMICOLON);
     }
 
@@ -500,21 +539,19 @@ public final class Analyser {
         expect(TokenType.CONTINUE_KW);
         expect(TokenType.SEMICOLON);
         if(this.while_level == 0){
-            throw new AnalyzeError(ErrorCode.OutWhile, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.OutWhile, tokens.getStartPos(peek()));
         }
-        Instruction instruction = new Instruction(Operation.br);
-        this.continue_instruction.add(new BreakAndContinue(instruction, this.function_body.size() + 1, this.while_level));
-        this.function_body.add(instruction);
+        int slot = this.function_body.addJump(Operation.br);
+        this.continue_instruction.add(new BreakAndContinue(slot, this.while_level));
     }
 
     private void analyseBreakStmt() throws CompileError{
         expect(TokenType.BREAK_KW);
         if(this.while_level == 0){
-            throw new AnalyzeError(ErrorCode.OutWhile, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.OutWhile, tokens.getStartPos(peek()));
         }
-        Instruction instruction = new Instruction(Operation.br);
-        this.break_instruction.add(new BreakAndContinue(instruction, this.function_body.size() + 1, this.while_level));
-        this.function_body.add(instruction);
+        int slot = this.function_body.addJump(Operation.br);
+        this.break_instruction.add(new BreakAndContinue(slot, this.while_level));
 
         expect(TokenType.SEMICOLON);
     }
@@ -522,26 +559,39 @@ public final class Analyser {
     private void analyseWhileStmt(int level) throws CompileError{
         // 函数里的第一个while level为1
         expect(TokenType.WHILE_KW);
-        this.addInstruction(new Instruction(Operation.br, (long)0));
 
-        // start，记录开始计算while条件的指令位置
-        int start = this.function_body.size();
+        // 循环倒置：条件先生成到单独的指令序列里，接在循环体后面
+        // br cond; start: 循环体; cond: 条件; br_true start
+        InstructionBuffer body = this.function_body;
+        this.function_body = newInstructions();
         TokenType type = analyseExpr();
-        this.addAllInstruction(expr_stack.addAllReset(type));
+        expr_stack.addAllReset(currentInstructions(), type);
+        InstructionBuffer condition = this.function_body;
+        this.function_body = body;
+        Operation loop_branch = fuseCondition(condition, Operation.br_true);
 
         if(type != TokenType.INT_KW && type != TokenType.DOUBLE_KW){
-            throw new AnalyzeError(ErrorCode.ExprTypeWrong, peek().getStartPos());
+            throw new AnalyzeError(ErrorCode.ExprTypeWrong, tokens.getStartPos(peek()));
         }
 
-        // br_true，如果是真的话跳过br指令，如果是假的话跳到br指令跳出循环
-        this.addInstruction(new Instruction(Operation.br_true, (long)1));
+        // 条件一定不成立，整个循环都不生成
+        Long value = constantCondition(condition);
+        if(value != null && value == 0){
+            this.while_level++;
+            analyseDiscarded(false, level);
+            this.while_level--;
+            if(this.while_level == 0){
+                this.continue_instruction = new ArrayList<>();
+                this.break_instruction = new ArrayList<>();
+            }
+            return;
+        }
 
-        //br，跳出循环体，参数待填
-        Instruction br = new Instruction(Operation.br);
-        this.addInstruction(br);
+        // br，第一次先跳到条件判断处，参数待填
+        int br_cond = this.function_body.addJump(Operation.br);
 
-        // 记录while循环体开始处
-        int index = this.function_body.size();
+        // start，记录while循环体开始处
+        int start = this.function_body.label();
 
         this.while_level++;
         analyseBlockStmt(null, level + 1);
@@ -549,27 +599,30 @@ public final class Analyser {
             this.while_level--;
         }
 
-        // br_start，跳到while条件判断处，参数待填
-        Instruction br_start = new Instruction(Operation.br);
-        this.addInstruction(br_start);
-        br_start.setNum((long)(start - this.function_body.size()));
+        // cond，条件判断处，continue也跳到这里
+        int cond = this.function_body.label();
+        this.function_body.patch(br_cond, cond);
+        this.function_body.append(condition);
 
-        int end_index = this.function_body.size();
-        br.setNum((long)(end_index - index));
+        // br_true，条件成立时跳回循环体开头，不成立时顺序执行跳出循环
+        int br_start = this.function_body.addJump(loop_branch);
+        this.function_body.patch(br_start, start);
 
-        if(break_instruction.size()!=0){
-            for(BreakAndContinue b: break_instruction){
-                if(b.getWhileLevel() == this.while_level + 1)
-                    b.getInstruction().setNum((long)(end_index - b.getLocation()));
-            }
+        int end = this.function_body.label();
+
+        // 回填本层循环里的break和continue，回填完就从列表里去掉
+        final int while_level = this.while_level + 1;
+        for(BreakAndContinue b: break_instruction){
+            if(b.getWhileLevel() == while_level)
+                this.function_body.patch(b.getSlot(), end);
         }
+        break_instruction.removeIf(b -> b.getWhileLevel() == while_level);
 
-        if(continue_instruction.size() != 0){
-            for(BreakAndContinue c: continue_instruction){
-                if(c.getWhileLevel() == this.while_level + 1)
-                    c.getInstruction().setNum((long)(end_index - c.getLocation() - 1));
-            }
+        for(BreakAndContinue c: continue_instruction){
+            if(c.getWhileLevel() == while_level)
+                this.function_body.patch(c.getSlot(), cond);
         }
+        continue_instruction.removeIf(c -> c.getWhileLevel() == while_level);
 
         // 重新初始化
         if(this.while_level == 0){
@@ -578,63 +631,110 @@ public final class Analyser {
         }
     }
 
+    /**
+     * 条件表达式后面要接 branch 时，比较结果不用先变成布尔值：
+     * == / <= / >= 最后的 not 去掉，改用相反的条件跳转；br_true / br_false 直接读 cmp 的结果
+     *
+     * @return 实际要用的条件跳转
+     */
+    private Operation fuseCondition(InstructionBuffer condition, Operation branch){
+        if(expr_stack.endsWithComparison(condition) && condition.lastOpt() == Operation.not
+            && condition.size() - 1 >= condition.getBarrier()){
+            condition.truncate(condition.size() - 1);
+            return branch == Operation.br_true ? Operation.br_false : Operation.br_true;
+        }
+        return branch;
+    }
+
+    /**
+     * 条件在编译时就能确定（折叠成了一条 push）时返回它的值，否则返回 null
+     */
+    private Long constantCondition(InstructionBuffer condition){
+        if(condition.size() > condition.getBarrier() && condition.lastOpt() == Operation.push){
+            return condition.getNum(condition.size() - 1);
+        }
+        return null;
+    }
+
+    /**
+     * 走不到的 if 语句或语句块：照常做语义检查，生成的指令丢掉
+     * 里面的 break / continue 也不用回填
+     */
+    private void analyseDiscarded(boolean if_stmt, int level) throws CompileError{
+        InstructionBuffer body = this.function_body;
+        int breaks = this.break_instruction.size();
+        int continues = this.continue_instruction.size();
+        this.function_body = newInstructions();
+        if(if_stmt){
+            analyseIfStmt(level);
+        }
+        else{
+            analyseBlockStmt(null, level + 1);
+        }
+        this.function_body = body;
+        this.break_instruction.subList(breaks, this.break_instruction.size()).clear();
+        this.continue_instruction.subList(continues, this.continue_instruction.size()).clear();
+    }
+
     private void analyseIfStmt(int level) throws CompileError{
         expect(TokenType.IF_KW);
 
         TokenType type = analyseExpr();
-        this.addAllInstruction(expr_stack.addAllReset(type));
+        expr_stack.addAllReset(currentInstructions(), type);
+
+        // 条件是常数时只生成会执行的那个分支
+        Long value = constantCondition(currentInstructions());
+        if(value != null){
+            this.function_body.truncate(this.function_body.size() - 1);
+            if(value != 0){
+                analyseBlockStmt(null, level + 1);
+            }
+            else{
+                analyseDiscarded(false, level);
+            }
+            if(!check(TokenType.ELSE_KW)){
+                return;
+            }
+            expect(TokenType.ELSE_KW);
+            boolean else_if = check(TokenType.IF_KW);
+            if(value != 0){
+                analyseDiscarded(else_if, level);
+            }
+            else if(else_if){
+                analyseIfStmt(level);
+            }
+            else{
+                analyseBlockStmt(null, level + 1);
+            }
+            return;
+        }
 
-        //brTrue
-        this.addInstruction(new Instruction(Operation.br_true, (long)1));
-        //br
-        Instruction br = new Instruction(Operation.br, (long)0);
-        this.addInstruction(br);
-        int index = this.function_body.size();
+        // 条件不成立时跳过 if block，目标待填
+        int br = this.function_body.addJump(fuseCondition(currentInstructions(), Operation.br_false));
 
         analyseBlockStmt(null, level + 1);
 
-        int size = this.function_body.size();
-
-        if(this.function_body.get(size - 1).getOpt() == Operation.ret){
-            // 如果if block分析完成后最后一个语句是ret
-            int dis = size - index;
-            br.setNum((long)dis);
-            if(check(TokenType.ELSE_KW)){
-                expect(TokenType.ELSE_KW);
-                if(check(TokenType.IF_KW)){
-                    // else if，递归调用if分析
-                    analyseIfStmt(level);
-                }
-                else{
-                    // else 语句
-                    analyseBlockStmt(null, level + 1);
-                    this.addInstruction(new Instruction(Operation.br, (long)0));
-                }
-            }
+        // if block 最后是 ret，并且没有跳转跳到 block 末尾时，不用再跳过 else block
+        boolean returned = this.function_body.lastOpt() == Operation.ret
+            && this.function_body.getBarrier() < this.function_body.size();
+        if(!check(TokenType.ELSE_KW)){
+            this.function_body.patch(br, this.function_body.label());
+            return;
+        }
+        // if执行完成后要跳转到else block之后
+        int jump = returned ? -1 : this.function_body.addJump(Operation.br);
+        this.function_body.patch(br, this.function_body.label());
+        expect(TokenType.ELSE_KW);
+        if(check(TokenType.IF_KW)){
+            // else if，递归调用if分析
+            analyseIfStmt(level);
         }
         else{
-            // if执行完成后要跳转到else block之后
-            Instruction jumpInstruction = new Instruction(Operation.br);
-            this.addInstruction(jumpInstruction);
-            int jump = this.function_body.size();
-
-            int dis = jump - index;
-            br.setNum((long)dis);
-
-            if(check(TokenType.ELSE_KW)){
-                expect(TokenType.ELSE_KW);
-                if(check(TokenType.IF_KW)){
-                    // else if，递归调用if分析
-                    analyseIfStmt(level);
-                }
-                else{
-                    // else 语句
-                    analyseBlockStmt(null, level + 1);
-                    this.addInstruction(new Instruction(Operation.br, (long)0));
-                }
-            }
-            dis = this.function_body.size() - jump;
-            jumpInstruction.setNum((long)dis);
+            // else 语句
+            analyseBlockStmt(null, level + 1);
+        }
+        if(jump >= 0){
+            this.function_body.patch(jump, this.function_body.label());
         }
     }
 
@@ -653,10 +753,10 @@ public final class Analyser {
             expect(TokenType.CONST_KW);
             is_const = true;
         }
-        Token nameToken = expect(TokenType.IDENT);
+        int nameToken = expect(TokenType.IDENT);
         expect(TokenType.COLON);
-        Token type = expect(TokenType.VOID_KW, TokenType.INT_KW, TokenType.DOUBLE_KW);
-        functionAddParam(type.getTokenType(), nameToken.getValueString(), nameToken.getStartPos(), is_const);
+        int type = expect(TokenType.VOID_KW, TokenType.INT_KW, TokenType.DOUBLE_KW);
+        functionAddParam(tokens.getTokenType(type), tokens.getValueString(nameToken), tokens.getStartPos(nameToken), is_const);
     }
 
     // level == 0是全局
@@ -671,68 +771,75 @@ public final class Analyser {
     // level == 0是全局
     private void analyseConstDeclStmt(int level) throws CompileError{
         expect(TokenType.CONST_KW);
-        Token nameToken = expect(TokenType.IDENT);
-        if(this.def_table.getSymbol(nameToken.getValueString()) != null){
-            throw new AnalyzeError(ErrorCode.DuplicateDeclaration, nameToken.getStartPos());
+        int nameToken = expect(TokenType.IDENT);
+        if(this.def_table.getSymbol(tokens.getValueString(nameToken)) != null){
+            throw new AnalyzeError(ErrorCode.DuplicateDeclaration, tokens.getStartPos(nameToken));
         }
         expect(TokenType.COLON);
-        Token type = expect(TokenType.INT_KW, TokenType.DOUBLE_KW);
+        int type = expect(TokenType.INT_KW, TokenType.DOUBLE_KW);
         expect(TokenType.ASSIGN);
         this.onAssign = true;
+        SymbolEntry se;
         if(level == 0){// 全局
-            int global_id = this.def_table.addGlobal(nameToken.getValueString(), type.getTokenType(), true, true, nameToken.getStartPos(), null);
-            this.global_instructions.add(new Instruction(Operation.globa, (long)global_id));
+            int global_id = this.def_table.addGlobal(tokens.getValueString(nameToken), tokens.getTokenType(type), true, true, tokens.getStartPos(nameToken), null);
+            this.global_instructions.add(Operation.globa, global_id);
+            se = this.def_table.getGlobalList().get(global_id);
         }
         else{
-            SymbolEntry se = functionAddLocal(type.getTokenType(),nameToken.getValueString(), true, true, nameToken.getStartPos(), level);
-            this.addInstruction(new Instruction(Operation.loca, (long)se.getId()));
+            se = functionAddLocal(tokens.getTokenType(type),tokens.getValueString(nameToken), true, true, tokens.getStartPos(nameToken), level);
+            this.addInstruction(Operation.loca, se.getId());
         }
         TokenType tt = analyseExpr();
-        if(tt != type.getTokenType()){
-            throw new AnalyzeError(ErrorCode.ExprTypeWrong, peek().getStartPos());
+        if(tt != tokens.getTokenType(type)){
+            throw new AnalyzeError(ErrorCode.ExprTypeWrong, tokens.getStartPos(peek()));
+        }
+        this.expr_stack.addAllReset(currentInstructions(), tt);
+        // 初值折叠成了常数时记下来，读这个常量时直接 push
+        InstructionBuffer ins = currentInstructions();
+        if(ins.size() - 1 >= ins.getBarrier() && ins.lastOpt() == Operation.push){
+            se.setValue(ins.getNum(ins.size() - 1));
         }
-        this.addAllInstruction(this.expr_stack.addAllReset(tt));
-        this.addInstruction(new Instruction((Operation.store64)));
+        this.addInstruction(Operation.store64);
         this.onAssign = false;
         expect(TokenType.SEMICOLON);
     }
 
     private void analyseLetDeclStmt(int level) throws CompileError{
         expect(TokenType.LET_KW);
-        Token nameToken = expect(TokenType.IDENT);
+        int nameToken = expect(TokenType.IDENT);
         expect(TokenType.COLON);
-        Token type = expect(TokenType.INT_KW, TokenType.DOUBLE_KW);
+        int type = expect(TokenType.INT_KW, TokenType.DOUBLE_KW);
         // todo: double类型检查
         if(check(TokenType.ASSIGN)){
             expect(TokenType.ASSIGN);
             this.onAssign = true;
             if(level == 0){
                 // 全局变量
-                int global_id = this.def_table.addGlobal(nameToken.getValueString(), type.getTokenType(), true, false, nameToken.getStartPos(), null);
-                this.global_instructions.add(new Instruction(Operation.globa, (long)global_id));
+                int global_id = this.def_table.addGlobal(tokens.getValueString(nameToken), tokens.getTokenType(type), true, false, tokens.getStartPos(nameToken), null);
+                this.global_instructions.add(Operation.globa, global_id);
             }
             else{
                 // 局部变量
-                SymbolEntry se = functionAddLocal(type.getTokenType(),nameToken.getValueString(), true, false, nameToken.getStartPos(), level);
-                this.addInstruction(new Instruction(Operation.loca, (long)se.getId()));
+                SymbolEntry se = functionAddLocal(tokens.getTokenType(type),tokens.getValueString(nameToken), true, false, tokens.getStartPos(nameToken), level);
+                this.addInstruction(Operation.loca, se.getId());
             }
             TokenType tt = analyseExpr();
-            if(tt != type.getTokenType()){
-                System.out.println(tt + "  " + type.getTokenType());
-                throw new AnalyzeError(ErrorCode.ExprTypeWrong, peek().getStartPos());
+            if(tt != tokens.getTokenType(type)){
+                System.out.println(tt + "  " + tokens.getTokenType(type));
+                throw new AnalyzeError(ErrorCode.ExprTypeWrong, tokens.getStartPos(peek()));
             }
-            this.addAllInstruction(this.expr_stack.addAllReset(tt));
-            this.addInstruction(new Instruction((Operation.store64)));
+            this.expr_stack.addAllReset(currentInstructions(), tt);
+            this.addInstruction(Operation.store64);
             this.onAssign = false;
         }
         else{
             if(level == 0){
                 // 全局变量
-                this.def_table.addGlobal(nameToken.getValueString(), type.getTokenType(), true, false, nameToken.getStartPos(), null);
+                this.def_table.addGlobal(tokens.getValueString(nameToken), tokens.getTokenType(type), true, false, tokens.getStartPos(nameToken), null);
             }
             else{
                 // 局部变量
-                functionAddLocal(type.getTokenType(),nameToken.getValueString(), false, false, nameToken.getStartPos(), level);
+                functionAddLocal(tokens.getTokenType(type),tokens.getValueString(nameToken), false, false, tokens.getStartPos(nameToken), level);
             }
         }
         expect(TokenType.SEMICOLON);
@@ -1,38 +1,34 @@
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 
 public class App {
     public static void main(String[] args) throws IOException, CompileError {
 //        try {
-            InputStream input;
             PrintStream output;
-            DataOutputStream out;
             System.out.println(args[0]);
             String inputFileName = args[0], outputFileName = args[1];
-            input = new FileInputStream(new File(inputFileName));
-            out = new DataOutputStream(new FileOutputStream(new File(outputFileName)));
-
-
-            Scanner scanner;
-            scanner = new Scanner(input);
-            while(scanner.hasNext()){
-                System.out.println(scanner.nextLine());
+            // 可选参数：--unroll-factor N 部分展开循环最多复制几遍，--unroll-budget N 展开后循环最多多少条指令
+            for (int k = 2; k + 1 < args.length; k += 2) {
+                if (args[k].equals("--unroll-factor")) {
+                    Optimizer.unroll_factor = Integer.parseInt(args[k + 1]);
+                }
+                else if (args[k].equals("--unroll-budget")) {
+                    Optimizer.unroll_budget = Integer.parseInt(args[k + 1]);
+                }
             }
+            FileChannel out = FileChannel.open(Paths.get(outputFileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+            // 源文件只映射一次，回显和词法分析共用同一个缓冲区
+            StringIter iter = new StringIter(Paths.get(inputFileName));
+            iter.writeTo(System.out);
+            System.out.println();
             System.out.println("------------start-----------");
 
-            input = new FileInputStream(new File(inputFileName));
-            scanner = new Scanner(input);
-            StringIter iter = new StringIter(scanner);
             Tokenizer tokenizer = tokenize(iter);
 
 //            List<Token> tokens = new ArrayList<Token>();
@@ -54,20 +50,19 @@ public class App {
 //              output.println(token.toString());
 //            }
 //
-//            input = new FileInputStream(new File(inputFileName));
-//            scanner = new Scanner(input);
-//            iter = new StringIter(scanner);
+//            iter = new StringIter(Paths.get(inputFileName));
 //            tokenizer = tokenize(iter);
 
             Analyser analyzer = new Analyser(tokenizer);
             analyzer.analyse();
 
-            OutToBinary outPutBinary=new OutToBinary(analyzer.def_table, analyzer.getStartFunction());
-            List<Byte> bs=outPutBinary.generate();
-            byte[] temp=new byte[bs.size()];
-            for(int i=0;i<bs.size();i++)
-              temp[i]=bs.get(i);
-            out.write(temp);
+            Function start = analyzer.getStartFunction();
+            Optimizer.optimize(analyzer.def_table);
+
+            OutToBinary outPutBinary=new OutToBinary(analyzer.def_table, start);
+            // 直接把缓冲区写进文件，不再逐字节拷贝
+            outPutBinary.writeTo(out);
+            out.close();
 
 //        }catch (Exception e){
 //            System.exit(-1);
@@ -0,0 +1,71 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 基本块：一段只能从第一条进入、从最后一条离开的指令
+ * 块结尾的跳转单独存放，跳转目标是另一个块（符号标签），不是相对偏移
+ */
+public class BasicBlock {
+    // 块的编号，也就是它的符号标签
+    int id;
+
+    // 块内除结尾跳转以外的指令，ret 也放在这里
+    InstructionBuffer body = new InstructionBuffer(8);
+
+    // 结尾的跳转：br、br_true、br_false，没有跳转时为 null
+    Operation branch;
+
+    // 跳转目标
+    BasicBlock target;
+
+    // 顺序执行下去的后继：没有跳转或者条件跳转不成立时执行，ret 或 br 结尾时为 null
+    BasicBlock next;
+
+    List<BasicBlock> predecessors = new ArrayList<>();
+
+    public BasicBlock(int id) {
+        this.id = id;
+    }
+
+    public int getId() { return id; }
+
+    public InstructionBuffer getBody() { return body; }
+
+    public Operation getBranch() { return branch; }
+
+    public BasicBlock getTarget() { return target; }
+
+    public BasicBlock getNext() { return next; }
+
+    public List<BasicBlock> getPredecessors() { return predecessors; }
+
+    public void setBranch(Operation branch, BasicBlock target) {
+        this.branch = branch;
+        this.target = target;
+    }
+
+    public void setNext(BasicBlock next) { this.next = next; }
+
+    public boolean endsWithReturn() {
+        return body.lastOpt() == Operation.ret;
+    }
+
+    /**
+     * 所有后继，顺序执行的后继在前
+     */
+    public List<BasicBlock> getSuccessors() {
+        List<BasicBlock> successors = new ArrayList<>(2);
+        if (next != null) {
+            successors.add(next);
+        }
+        if (target != null && target != next) {
+            successors.add(target);
+        }
+        return successors;
+    }
+
+    @Override
+    public String toString() {
+        return "L" + id;
+    }
+}
@@ -1,19 +1,14 @@
 public class BreakAndContinue {
-    Instruction instruction;
-    int location;
+    // br 指令在函数体中的下标，循环结束时回填
+    int slot;
     int while_level;
-    public BreakAndContinue(Instruction instruction, int location, int while_level){
-        this.instruction = instruction;
-        this.location = location;
+    public BreakAndContinue(int slot, int while_level){
+        this.slot = slot;
         this.while_level = while_level;
     }
 
-    public Instruction getInstruction() {
-        return instruction;
-    }
-
-    public int getLocation() {
-        return location;
+    public int getSlot() {
+        return slot;
     }
 
     public int getWhileLevel() {
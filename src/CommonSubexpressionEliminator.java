@@ -0,0 +1,210 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 基本块内的公共子表达式消除
+ * 同一个基本块里算了两次的表达式（中间没有写它读的变量），后一次直接用前一次的结果：
+ * 紧挨着的第二次换成 dup；隔开的第一次算完存到新的局部变量里，后面改成读这个局部变量（划算时才做）
+ */
+public class CommonSubexpressionEliminator {
+    Function function;
+    InstructionBuffer code;
+    int size;
+    int[] targets;
+
+    // 一串相同的表达式，中间没有被改写
+    private static class Chain {
+        List<int[]> occurrences = new ArrayList<>();
+        Set<Long> reads;
+        boolean readsGlobals;
+
+        int length() {
+            int[] first = occurrences.get(0);
+            return first[1] - first[0] + 1;
+        }
+    }
+
+    private CommonSubexpressionEliminator(Function function) {
+        this.function = function;
+        this.code = function.getFunctionBody();
+        this.size = code.size();
+        this.targets = ControlFlowGraph.branchTargets(code);
+    }
+
+    /**
+     * 对一个函数做公共子表达式消除，返回有没有改动
+     */
+    public static boolean optimize(Function function) {
+        CommonSubexpressionEliminator cse = new CommonSubexpressionEliminator(function);
+        List<Chain> chains = cse.findChains();
+        return cse.rewrite(chains);
+    }
+
+    private List<Chain> findChains() {
+        boolean[] is_target = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (targets[i] >= 0) {
+                is_target[targets[i]] = true;
+            }
+        }
+        List<Chain> chains = new ArrayList<>();
+        // 当前基本块里还能用的表达式
+        Map<String, Chain> available = new HashMap<>();
+        List<StackValue> stack = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (is_target[i]) {
+                stack.clear();
+                available.clear();
+            }
+            Operation opt = code.getOpt(i);
+            StackValue v = StackValue.step(stack, code, i);
+            if (v == null && opt == Operation.store64) {
+                // 写变量：读这个变量的表达式都不能再用了
+                StackValue.pop(stack, i);
+                StackValue a = StackValue.pop(stack, i);
+                if (a.variable >= 0) {
+                    invalidate(available, a.variable);
+                }
+                else {
+                    available.clear();
+                }
+            }
+            else if (v == null) {
+                // 调用可能写全局变量
+                if (opt == Operation.call || opt == Operation.callname) {
+                    available.values().removeIf(c -> c.readsGlobals);
+                }
+                stack.clear();
+            }
+            // 常数和地址不值得重复使用
+            if (v != null && v.pure && !v.constant && v.variable < 0) {
+                String key = StackValue.key(code, v.start, v.end);
+                Chain chain = available.get(key);
+                if (chain == null) {
+                    chain = new Chain();
+                    chain.reads = v.reads;
+                    chain.readsGlobals = v.readsGlobals();
+                    chains.add(chain);
+                    available.put(key, chain);
+                }
+                chain.occurrences.add(new int[]{v.start, v.end});
+            }
+            if (ControlFlowGraph.isBranch(opt) || opt == Operation.ret) {
+                stack.clear();
+                available.clear();
+            }
+        }
+        return chains;
+    }
+
+    // 按表达式从长到短处理，和已经处理过的区间重叠的不要
+    private boolean rewrite(List<Chain> chains) {
+        chains.removeIf(c -> c.occurrences.size() < 2);
+        if (chains.isEmpty()) {
+            return false;
+        }
+        chains.sort((x, y) -> y.length() - x.length());
+        boolean[] claimed = new boolean[size];
+        // 每条指令替换成什么：0 不变，1 第一次算并存到局部变量，2 读局部变量，3 dup
+        int[] action = new int[size];
+        int[] end_of = new int[size];
+        int[] slot_of = new int[size];
+        boolean changed = false;
+        for (Chain chain : chains) {
+            List<int[]> kept = new ArrayList<>();
+            for (int[] o : chain.occurrences) {
+                boolean free = true;
+                for (int k = o[0]; k <= o[1] && free; k++) {
+                    free = !claimed[k];
+                }
+                if (free) {
+                    kept.add(o);
+                }
+            }
+            if (kept.size() < 2) {
+                continue;
+            }
+            int length = chain.length();
+            // 紧跟在上一次后面的用 dup，其余的需要局部变量
+            int far = 0;
+            for (int k = 1; k < kept.size(); k++) {
+                if (kept.get(k)[0] != kept.get(k - 1)[1] + 1) {
+                    far++;
+                }
+            }
+            // 存局部变量多 4 条指令，每次读局部变量 2 条
+            boolean use_temp = far > 0 && far * (length - 2) > 4;
+            int slot = -1;
+            if (use_temp) {
+                slot = function.getLocalSlot();
+                function.setLocalSlot(slot + 1);
+            }
+            for (int k = 0; k < kept.size(); k++) {
+                int[] o = kept.get(k);
+                boolean adjacent = k > 0 && o[0] == kept.get(k - 1)[1] + 1;
+                int act;
+                if (k == 0) {
+                    act = use_temp ? 1 : 0;
+                }
+                else if (adjacent) {
+                    act = 3;
+                }
+                else {
+                    act = use_temp ? 2 : 0;
+                }
+                // 第一次不存的时候，后面不紧挨着的保持原样，不占用区间
+                if (act == 0 && k > 0) {
+                    continue;
+                }
+                for (int j = o[0]; j <= o[1]; j++) {
+                    claimed[j] = true;
+                }
+                action[o[0]] = act;
+                end_of[o[0]] = o[1];
+                slot_of[o[0]] = slot;
+                changed |= act != 0;
+            }
+        }
+        if (!changed) {
+            return false;
+        }
+
+        List<ControlFlowGraph.Replacement> replacements = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (action[i] == 0) {
+                continue;
+            }
+            ControlFlowGraph.Replacement r = new ControlFlowGraph.Replacement(i, end_of[i] + 1);
+            InstructionBuffer out = r.getCode();
+            switch (action[i]) {
+                case 1:
+                    out.add(Operation.loca, slot_of[i]);
+                    for (int k = i; k <= end_of[i]; k++) {
+                        out.add(code.getOpt(k), code.getNum(k));
+                    }
+                    out.add(Operation.store64);
+                    out.add(Operation.loca, slot_of[i]);
+                    out.add(Operation.load64);
+                    break;
+                case 2:
+                    out.add(Operation.loca, slot_of[i]);
+                    out.add(Operation.load64);
+                    break;
+                default:
+                    out.add(Operation.dup);
+                    break;
+            }
+            replacements.add(r);
+            i = end_of[i];
+        }
+        function.setFunctionBody(ControlFlowGraph.replace(code, replacements));
+        return true;
+    }
+
+    private static void invalidate(Map<String, Chain> available, long variable) {
+        available.values().removeIf(c -> c.reads.contains(variable));
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * 生成指令时做常量折叠
+ * 栈顶的操作数都是刚 push 进去的立即数时，直接在编译期算出结果，换成一条 push
+ * 计算按虚拟机的语义：整数是 64 位补码回绕，浮点数是 IEEE-754 双精度
+ */
+public class ConstantFolder {
+
+    private ConstantFolder() {
+    }
+
+    /**
+     * 尝试把即将追加的 opt 和 buf 末尾的 push 折叠成一条 push
+     *
+     * @return 折叠成功时返回结果 push 的下标，不能折叠时返回 -1（此时 buf 没有变化）
+     */
+    public static int fold(InstructionBuffer buf, Operation opt) {
+        int operands = operandCount(opt);
+        if (operands == 0) {
+            return -1;
+        }
+        int first = buf.size() - operands;
+        // 不能越过跳转目标去拿操作数
+        if (first < buf.getBarrier()) {
+            return -1;
+        }
+        for (int i = first; i < buf.size(); i++) {
+            if (buf.getOpt(i) != Operation.push) {
+                return -1;
+            }
+        }
+        long result;
+        if (operands == 1) {
+            long x = buf.getNum(first);
+            switch (opt) {
+                case neg_i:
+                    result = -x;
+                    break;
+                case neg_f:
+                    result = bits(-dbl(x));
+                    break;
+                case itof:
+                    result = bits((double) x);
+                    break;
+                case ftoi:
+                    // Java 和虚拟机一样：超出范围取边界值，NaN 为 0
+                    result = (long) dbl(x);
+                    break;
+                case not:
+                    result = x == 0 ? 1 : 0;
+                    break;
+                case set_lt:
+                    result = x < 0 ? 1 : 0;
+                    break;
+                case set_gt:
+                    result = x > 0 ? 1 : 0;
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        else {
+            long l = buf.getNum(first), r = buf.getNum(first + 1);
+            switch (opt) {
+                case add_i:
+                    result = l + r;
+                    break;
+                case sub_i:
+                    result = l - r;
+                    break;
+                case mul_i:
+                    result = l * r;
+                    break;
+                case div_i:
+                    // 除零和溢出留给运行时报错
+                    if (r == 0 || (l == Long.MIN_VALUE && r == -1)) {
+                        return -1;
+                    }
+                    result = l / r;
+                    break;
+                case add_f:
+                    result = bits(dbl(l) + dbl(r));
+                    break;
+                case sub_f:
+                    result = bits(dbl(l) - dbl(r));
+                    break;
+                case mul_f:
+                    result = bits(dbl(l) * dbl(r));
+                    break;
+                case div_f:
+                    result = bits(dbl(l) / dbl(r));
+                    break;
+                case cmp_i:
+                    result = Long.compare(l, r);
+                    break;
+                case cmp_f:
+                    // NaN 的比较结果交给虚拟机
+                    if (Double.isNaN(dbl(l)) || Double.isNaN(dbl(r))) {
+                        return -1;
+                    }
+                    result = dbl(l) < dbl(r) ? -1 : (dbl(l) > dbl(r) ? 1 : 0);
+                    break;
+                default:
+                    return -1;
+            }
+        }
+        buf.truncate(first);
+        return buf.add(Operation.push, result);
+    }
+
+    private static int operandCount(Operation opt) {
+        switch (opt) {
+            case neg_i:
+            case neg_f:
+            case itof:
+            case ftoi:
+            case not:
+            case set_lt:
+            case set_gt:
+                return 1;
+            case add_i:
+            case sub_i:
+            case mul_i:
+            case div_i:
+            case add_f:
+            case sub_f:
+            case mul_f:
+            case div_f:
+            case cmp_i:
+            case cmp_f:
+                return 2;
+            default:
+                return 0;
+        }
+    }
+
+    private static double dbl(long bits) {
+        return Double.longBitsToDouble(bits);
+    }
+
+    private static long bits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+}
@@ -0,0 +1,270 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 函数体的控制流图
+ * build 把相对偏移的指令序列切成基本块，跳转换成块之间的边
+ * linearize 按 blocks 的顺序重新排成指令序列，并重新计算所有偏移
+ * 最后总有一个空的 exit 块，表示执行到函数体末尾（只有 _start 会这样结束）
+ * 只替换几段指令、不改变块结构的优化用 replace，不用重建整个图
+ */
+public class ControlFlowGraph {
+    /**
+     * 把原来指令序列里的 [from, to) 换成 code
+     * code 里直接 add 的跳转按相对偏移原样保留（只在这段里面跳），跳到原来代码的用 addBranch
+     */
+    public static class Replacement {
+        int from;
+        int to;
+        InstructionBuffer code = new InstructionBuffer();
+        // code 里跳到原来代码的跳转的下标和原来的目标
+        List<Integer> branches = new ArrayList<>();
+        List<Integer> branch_targets = new ArrayList<>();
+
+        public Replacement(int from, int to) {
+            if (to <= from) {
+                throw new Error("empty replacement at " + from);
+            }
+            this.from = from;
+            this.to = to;
+        }
+
+        public InstructionBuffer getCode() { return code; }
+
+        /**
+         * 追加一条跳到原来代码第 target 条指令的跳转，偏移在 replace 时算
+         */
+        public void addBranch(Operation opt, int target) {
+            branches.add(code.size());
+            branch_targets.add(target);
+            code.add(opt, 0);
+        }
+    }
+
+    List<BasicBlock> blocks = new ArrayList<>();
+
+    BasicBlock entry;
+
+    BasicBlock exit;
+
+    public List<BasicBlock> getBlocks() { return blocks; }
+
+    public BasicBlock getEntry() { return entry; }
+
+    public BasicBlock getExit() { return exit; }
+
+    public static ControlFlowGraph build(InstructionBuffer code) {
+        int size = code.size();
+        // 每条指令是否是一个块的开头
+        boolean[] leader = new boolean[size + 1];
+        leader[0] = true;
+        leader[size] = true;
+        for (int i = 0; i < size; i++) {
+            Operation opt = code.getOpt(i);
+            if (isBranch(opt)) {
+                int target = (int) (i + 1 + code.getNum(i));
+                if (target < 0 || target > size) {
+                    throw new Error("branch out of function body at " + i);
+                }
+                leader[target] = true;
+                leader[i + 1] = true;
+            }
+            else if (opt == Operation.ret) {
+                leader[i + 1] = true;
+            }
+        }
+
+        ControlFlowGraph cfg = new ControlFlowGraph();
+        // 指令下标 -> 以它开头的块
+        BasicBlock[] blockAt = new BasicBlock[size + 1];
+        for (int i = 0; i <= size; i++) {
+            if (leader[i]) {
+                blockAt[i] = new BasicBlock(cfg.blocks.size());
+                cfg.blocks.add(blockAt[i]);
+            }
+        }
+        cfg.entry = blockAt[0];
+        cfg.exit = blockAt[size];
+
+        BasicBlock current = null;
+        for (int i = 0; i < size; i++) {
+            if (blockAt[i] != null) {
+                // 上一个块没有以跳转或 ret 结尾，顺序执行到这个块
+                if (current != null && current.branch == null && !current.endsWithReturn()) {
+                    current.next = blockAt[i];
+                }
+                current = blockAt[i];
+            }
+            Operation opt = code.getOpt(i);
+            if (isBranch(opt)) {
+                current.setBranch(opt, blockAt[(int) (i + 1 + code.getNum(i))]);
+                if (opt != Operation.br) {
+                    current.next = blockAt[i + 1];
+                }
+            }
+            else {
+                current.body.add(opt, code.getNum(i));
+            }
+        }
+        if (current != null && current.branch == null && !current.endsWithReturn()) {
+            current.next = cfg.exit;
+        }
+        cfg.computePredecessors();
+        return cfg;
+    }
+
+    public static boolean isBranch(Operation opt) {
+        return opt == Operation.br || opt == Operation.br_true || opt == Operation.br_false;
+    }
+
+    /**
+     * 每条跳转指令跳到的下标，不是跳转的为 -1
+     */
+    public static int[] branchTargets(InstructionBuffer code) {
+        int size = code.size();
+        int[] targets = new int[size];
+        for (int i = 0; i < size; i++) {
+            targets[i] = isBranch(code.getOpt(i)) ? (int) (i + 1 + code.getNum(i)) : -1;
+        }
+        return targets;
+    }
+
+    /**
+     * 按 replacements（按 from 排好、互不重叠）替换 code 里的几段指令，返回新的指令序列
+     * 其余的跳转重新计算偏移，跳到被替换的一段里面的改成跳到替换后的开头
+     */
+    public static InstructionBuffer replace(InstructionBuffer code, List<Replacement> replacements) {
+        int size = code.size();
+        int[] targets = branchTargets(code);
+        InstructionBuffer out = new InstructionBuffer(size + 16);
+        int[] new_index = new int[size + 1];
+        List<Integer> branches = new ArrayList<>();
+        List<Integer> branch_targets = new ArrayList<>();
+        int i = 0;
+        for (Replacement r : replacements) {
+            if (r.from < i || r.to > size) {
+                throw new Error("overlapping replacement at " + r.from);
+            }
+            for (; i < r.from; i++) {
+                new_index[i] = out.size();
+                if (targets[i] >= 0) {
+                    branches.add(out.size());
+                    branch_targets.add(targets[i]);
+                }
+                out.add(code.getOpt(i), code.getNum(i));
+            }
+            int start = out.size();
+            for (; i < r.to; i++) {
+                new_index[i] = start;
+            }
+            for (int k = 0; k < r.branches.size(); k++) {
+                branches.add(start + r.branches.get(k));
+                branch_targets.add(r.branch_targets.get(k));
+            }
+            out.append(r.code);
+        }
+        for (; i < size; i++) {
+            new_index[i] = out.size();
+            if (targets[i] >= 0) {
+                branches.add(out.size());
+                branch_targets.add(targets[i]);
+            }
+            out.add(code.getOpt(i), code.getNum(i));
+        }
+        new_index[size] = out.size();
+        for (int k = 0; k < branches.size(); k++) {
+            int at = branches.get(k);
+            out.setNum(at, new_index[branch_targets.get(k)] - (at + 1));
+        }
+        return out;
+    }
+
+    public void computePredecessors() {
+        for (BasicBlock block : blocks) {
+            block.predecessors.clear();
+        }
+        for (BasicBlock block : blocks) {
+            for (BasicBlock succ : block.getSuccessors()) {
+                succ.predecessors.add(block);
+            }
+        }
+    }
+
+    /**
+     * 去掉从 entry 出发走不到的块（return / break / continue 后面的代码、多余的 ret 和跳转）
+     * exit 块是空的，总是留着
+     *
+     * @return 有没有去掉块
+     */
+    public boolean removeUnreachable() {
+        Set<BasicBlock> reachable = new HashSet<>();
+        Deque<BasicBlock> work = new ArrayDeque<>();
+        reachable.add(entry);
+        work.push(entry);
+        while (!work.isEmpty()) {
+            for (BasicBlock succ : work.pop().getSuccessors()) {
+                if (reachable.add(succ)) {
+                    work.push(succ);
+                }
+            }
+        }
+        boolean removed = blocks.removeIf(block -> block != exit && !reachable.contains(block));
+        if (removed) {
+            computePredecessors();
+        }
+        return removed;
+    }
+
+    /**
+     * 按 blocks 的顺序生成指令，exit 必须排在最后
+     * 顺序执行的后继不在下一个位置时补一条 br，跳到下一个位置的 br 直接省掉
+     */
+    public InstructionBuffer linearize() {
+        if (blocks.get(blocks.size() - 1) != exit) {
+            throw new Error("exit block must be laid out last");
+        }
+        int count = blocks.size();
+        int[] start = new int[count];
+        int position = 0;
+        // 先算出每个块的起始位置
+        for (int k = 0; k < count; k++) {
+            BasicBlock block = blocks.get(k);
+            BasicBlock following = k + 1 < count ? blocks.get(k + 1) : null;
+            start[k] = position;
+            position += block.body.size() + tailSize(block, following);
+        }
+        for (int k = 0; k < count; k++) {
+            blocks.get(k).id = k;
+        }
+
+        InstructionBuffer code = new InstructionBuffer(position + 1);
+        for (int k = 0; k < count; k++) {
+            BasicBlock block = blocks.get(k);
+            BasicBlock following = k + 1 < count ? blocks.get(k + 1) : null;
+            code.append(block.body);
+            if (block.branch != null && !(block.branch == Operation.br && block.target == following)) {
+                code.add(block.branch, start[block.target.id] - (code.size() + 1));
+            }
+            if (block.branch != Operation.br && block.next != null && block.next != following) {
+                code.add(Operation.br, start[block.next.id] - (code.size() + 1));
+            }
+        }
+        return code;
+    }
+
+    // 块结尾需要多少条跳转指令
+    private static int tailSize(BasicBlock block, BasicBlock following) {
+        int size = 0;
+        if (block.branch != null && !(block.branch == Operation.br && block.target == following)) {
+            size++;
+        }
+        if (block.branch != Operation.br && block.next != null && block.next != following) {
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 去掉从 _start 和 main 出发调用不到的函数
+ * 剩下的函数重新编号，call 的操作数跟着改；函数名的全局变量在全局变量表最后，去掉后重新编号即可
+ */
+public class DeadFunctionEliminator {
+    private DeadFunctionEliminator() {
+    }
+
+    public static void optimize(Definition def_table) {
+        List<Function> order = def_table.getFunctionOrder();
+        boolean[] reachable = new boolean[order.size()];
+        Deque<Integer> work = new ArrayDeque<>();
+        reachable[0] = true;
+        work.push(0);
+        // main 是程序入口，即使 _start 里的调用被改掉了也要留着
+        for (Function func : order) {
+            if (func.getName().equals("main") && !reachable[func.getIndex()]) {
+                reachable[func.getIndex()] = true;
+                work.push(func.getIndex());
+            }
+        }
+        while (!work.isEmpty()) {
+            InstructionBuffer body = order.get(work.pop()).getFunctionBody();
+            for (int i = 0; i < body.size(); i++) {
+                if (body.getOpt(i) != Operation.call) {
+                    continue;
+                }
+                int callee = (int) body.getNum(i);
+                if (!reachable[callee]) {
+                    reachable[callee] = true;
+                    work.push(callee);
+                }
+            }
+        }
+
+        // 旧编号 -> 新编号
+        int[] renumber = new int[order.size()];
+        List<Function> live = new ArrayList<>();
+        for (int k = 0; k < order.size(); k++) {
+            if (reachable[k]) {
+                renumber[k] = live.size();
+                live.add(order.get(k));
+            }
+            else {
+                renumber[k] = -1;
+                System.out.println("remove function: " + order.get(k).getName());
+            }
+        }
+        if (live.size() == order.size()) {
+            return;
+        }
+        for (Function func : live) {
+            func.setIndex(renumber[func.getIndex()]);
+            InstructionBuffer body = func.getFunctionBody();
+            for (int i = 0; i < body.size(); i++) {
+                if (body.getOpt(i) == Operation.call) {
+                    body.setNum(i, renumber[(int) body.getNum(i)]);
+                }
+            }
+        }
+        order.clear();
+        order.addAll(live);
+
+        // 函数名都在全局变量表最后，按剩下的函数重新排
+        List<SymbolEntry> globals = def_table.getGlobalList();
+        int first_name = globals.size() - reachable.length;
+        globals.subList(first_name, globals.size()).clear();
+        for (Function func : live) {
+            func.setId(globals.size());
+            globals.add(func.getSymbolEntry());
+        }
+    }
+}
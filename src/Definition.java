@@ -11,14 +11,22 @@ public class Definition {
 
     HashMap<String, Function> function_list = new HashMap<String, Function>();
 
-    // 全局变量加函数的符号表
-    HashMap<Integer, SymbolEntry> symbol_list = new HashMap<>();
+    // 非库函数按定义顺序排好，下标就是函数编号
+    // 函数名的全局变量在 generate 时才统一放到全局变量表最后，去掉没用到的函数时只影响函数名
+    List<Function> function_order = new ArrayList<>();
 
-    int nextOffset = 0;
+    // 符号表：符号名 -> 当前最内层的同名符号，外层的同名符号沿 shadowed 链往下找
+    HashMap<String, SymbolEntry> symbol_list = new HashMap<>();
+
+    // 作用域栈：每一层声明了哪些符号，退出这一层时只处理这些符号
+    List<List<SymbolEntry>> scope_stack = new ArrayList<>();
+
+    // 字符串常量池：字符串 -> 全局变量 id，相同的字符串只占一个全局变量，不进符号表
+    HashMap<String, Integer> string_pool = new HashMap<>();
 
-    int symbol_list_index = 0;
+    int nextOffset = 0;
 
-    List<Instruction> instruction;
+    InstructionBuffer instruction;
 
     // 当前level
     int level = 0;
@@ -46,25 +54,25 @@ public class Definition {
         switch (name) {
             case "getchar":
                 func = this.addFunction("getchar", TokenType.CHAR_LITERAL, new Pos(-1, -1));
-                func.setFunctionBody(new ArrayList<>(Collections.singletonList(new Instruction())));
+                func.setFunctionBody(nopBody());
                 func.setReturnType(TokenType.INT_KW);
                 func.setParamSlot(0);
                 return func;
             case "getint":
                 func = this.addFunction("getint", TokenType.INT_KW, new Pos(-1, -1));
-                func.setFunctionBody(new ArrayList<>(Collections.singletonList(new Instruction())));
+                func.setFunctionBody(nopBody());
                 func.setReturnType(TokenType.INT_KW);
                 func.setParamSlot(0);
                 return func;
             case "getdouble":
                 func = this.addFunction("getdouble", TokenType.DOUBLE_KW, new Pos(-1, -1));
-                func.setFunctionBody(new ArrayList<>(Collections.singletonList(new Instruction())));
+                func.setFunctionBody(nopBody());
                 func.setReturnType(TokenType.DOUBLE_KW);
                 func.setParamSlot(0);
                 return func;
             case "putint":
                 func = this.addFunction("putint", TokenType.VOID_KW, new Pos(-1, -1));
-                func.setFunctionBody(new ArrayList<>(Collections.singletonList(new Instruction())));
+                func.setFunctionBody(nopBody());
                 func.setReturnType(TokenType.VOID_KW);
                 func.setParamSlot(1);
                 func.setParams(new ArrayList<>(Collections.singletonList(
@@ -73,7 +81,7 @@ public class Definition {
                 return func;
             case "putdouble":
                 func = this.addFunction("putdouble", TokenType.VOID_KW, new Pos(-1, -1));
-                func.setFunctionBody(new ArrayList<>(Collections.singletonList(new Instruction())));
+                func.setFunctionBody(nopBody());
                 func.setReturnType(TokenType.VOID_KW);
                 func.setParamSlot(1);
                 func.setParams(new ArrayList<>(Collections.singletonList(
@@ -82,7 +90,7 @@ public class Definition {
                 return func;
             case "putchar":
                 func = this.addFunction("putchar", TokenType.VOID_KW, new Pos(-1, -1));
-                func.setFunctionBody(new ArrayList<>(Collections.singletonList(new Instruction())));
+                func.setFunctionBody(nopBody());
                 func.setReturnType(TokenType.VOID_KW);
                 func.setParamSlot(1);
                 func.setParams(new ArrayList<>(Collections.singletonList(
@@ -91,7 +99,7 @@ public class Definition {
                 return func;
             case "putstr":
                 func = this.addFunction("putstr", TokenType.VOID_KW, new Pos(-1, -1));
-                func.setFunctionBody(new ArrayList<>(Collections.singletonList(new Instruction())));
+                func.setFunctionBody(nopBody());
                 func.setReturnType(TokenType.VOID_KW);
                 func.setParamSlot(1);
                 func.setParams(new ArrayList<>(Collections.singletonList(
@@ -100,7 +108,7 @@ public class Definition {
                 return func;
             case "putln":
                 func = this.addFunction("putln", TokenType.DOUBLE_KW, new Pos(-1, -1));
-                func.setFunctionBody(new ArrayList<>(Collections.singletonList(new Instruction())));
+                func.setFunctionBody(nopBody());
                 func.setReturnType(TokenType.VOID_KW);
                 func.setParamSlot(0);
                 return func;
@@ -109,21 +117,22 @@ public class Definition {
         }
     }
 
+    // 库函数没有函数体，放一条 nop 占位
+    private InstructionBuffer nopBody(){
+        InstructionBuffer body = new InstructionBuffer(4);
+        body.add(Operation.nop);
+        return body;
+    }
+
     public List<SymbolEntry> getGlobalList() { return this.global_list; }
 
     public int getGlobalListCount(){ return this.global_list.size(); }
 
     public HashMap<String, Function> getFunctionList() { return function_list; }
 
-    public int getFunctionListCount(){
-        int count = 0;
-        for(String name: this.function_list.keySet()){
-            if(!isSTDFunction(name)){
-                count++;
-            }
-        }
-        return count;
-    }
+    public List<Function> getFunctionOrder() { return this.function_order; }
+
+    public int getFunctionListCount(){ return this.function_order.size(); }
     // value是他的值
     // 返回的是global的id
     public int addGlobal(String name, TokenType tt, boolean is_ini, boolean is_const, Pos pos, Object value) throws AnalyzeError {
@@ -136,6 +145,32 @@ public class Definition {
         return se.getId();
     }
 
+    // 字符串字面量放进常量池，返回对应的全局变量 id
+    public int addString(String value){
+        Integer id = this.string_pool.get(value);
+        if(id != null){
+            return id;
+        }
+        System.out.println("add string: " + value + "\t\t index: " + this.global_list.size());
+        SymbolEntry se = new SymbolEntry(this.global_list.size(), SymbolType.Global, value, TokenType.STRING_LITERAL,
+            true, true, value, 0);
+        this.global_list.add(se);
+        this.string_pool.put(value, se.getId());
+        return se.getId();
+    }
+
+    // 函数名对应的全局变量 id -> 函数，不是函数时返回 null
+    public Function getFunctionByGlobalId(int id){
+        if(id < 0 || id >= this.global_list.size()){
+            return null;
+        }
+        SymbolEntry se = this.global_list.get(id);
+        if(!se.isFunction()){
+            return null;
+        }
+        return this.function_list.get(se.getName());
+    }
+
     public int getGlobalId(String name) throws AnalyzeError {
         for(SymbolEntry se: global_list){
             if(se.getName().equals(name)){
@@ -146,54 +181,73 @@ public class Definition {
     }
 
     public Function addFunction(String name, TokenType return_tt, Pos pos) throws AnalyzeError {
-        System.out.println("add function: " + name + "\t\t index: " + this.global_list.size());
+        System.out.println("add function: " + name + "\t\t index: " + this.function_order.size());
         if(this.function_list.get(name) != null || getSymbol(name, level) != null){
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, pos);
         }
         Function func;
-        SymbolEntry se = this.addSymbol(this.global_list.size(), name, SymbolType.Function, return_tt, true, true, pos, name, 0);
+        // 库函数直接生成对应的指令，不占全局变量；其他函数名的全局变量 id 在 generate 时分配
+        boolean is_std = isSTDFunction(name);
+        SymbolEntry se = this.addSymbol(-1, name, SymbolType.Function, return_tt, true, true, pos, name, 0);
         func = new Function(se, name, pos, return_tt);
         this.function_list.put(name, func);
-        this.global_list.add(se);
+        if(!is_std){
+            func.setIndex(this.function_order.size());
+            this.function_order.add(func);
+        }
         return func;
     }
 
     // todo: 局部变量和全局可以重名，和函数可以重名吗？
     public SymbolEntry addSymbol(int id, String name, SymbolType type, TokenType tt, boolean is_init, boolean is_const, Pos curPos, Object value, int level) throws AnalyzeError {
-//        System.out.println("add symbol " + name + "\t\t index: " + this.symbol_list_index + "\t\t type: " + tt + "\t\t level: " + level);
+//        System.out.println("add symbol " + name + "\t\t type: " + tt + "\t\t level: " + level);
         SymbolEntry se = getSymbol(name, level);
         // 同级存在重复定义
         if(se != null){
             throw new AnalyzeError(ErrorCode.DuplicateDeclaration, curPos);
         }
         se = new SymbolEntry(id, type, name, tt, is_init, is_const, value, level);
-        this.symbol_list.put(this.symbol_list_index++, se);
-//        System.out.println(this.symbol_list.size());
+        // 按 level 从高到低插进同名链，一般就是插在链头
+        SymbolEntry head = this.symbol_list.get(name);
+        if(head == null || head.getLevel() < level){
+            se.shadowed = head;
+            this.symbol_list.put(name, se);
+        }
+        else{
+            SymbolEntry prev = head;
+            while(prev.shadowed != null && prev.shadowed.getLevel() > level){
+                prev = prev.shadowed;
+            }
+            se.shadowed = prev.shadowed;
+            prev.shadowed = se;
+        }
+        getScope(level).add(se);
         return se;
     }
 
+    private List<SymbolEntry> getScope(int level){
+        while(this.scope_stack.size() <= level){
+            this.scope_stack.add(new ArrayList<>());
+        }
+        return this.scope_stack.get(level);
+    }
+
     public SymbolEntry getSymbol(String name){
-        // todo: 从level最高的开始查， hashmap排序
-//        System.out.println("get symbol: " + name + " now_level: " + this.level);
-        for(int i = this.level; i >= 0; i--){
-            for(Integer a :this.symbol_list.keySet()){
-                SymbolEntry sym = this.symbol_list.get(a);
-//                System.out.println("check name: " +sym.getName());
-                if(sym.level == i && sym.getName().equals(name)){
-                    return sym;
-                }
-            }
+        // 链头就是最内层的，只需要跳过比当前 level 还高的
+        SymbolEntry sym = this.symbol_list.get(name);
+        while(sym != null && sym.getLevel() > this.level){
+            sym = sym.shadowed;
         }
-        return null;
+        return sym;
     }
 
     public SymbolEntry getSymbol(String name, int level){
-//        System.out.println("get symbol: " + name + " level: " + this.level);
-        for(Integer a :this.symbol_list.keySet()){
-            SymbolEntry sym = this.symbol_list.get(a);
-            if(sym.getLevel() == level && sym.getName().equals(name)){
-                return sym;
-            }
+        SymbolEntry sym = this.symbol_list.get(name);
+        while(sym != null && sym.getLevel() > level){
+            sym = sym.shadowed;
+        }
+        if(sym != null && sym.getLevel() == level){
+            return sym;
         }
         return null;
     }
@@ -210,52 +264,62 @@ public class Definition {
         return func;
     }
 
-    public Function generate(List<Instruction> global_ins) throws AnalyzeError {
+    public Function generate(InstructionBuffer global_ins) throws AnalyzeError {
         Function main_func = getFunction("main");
         if(main_func == null){
             throw new AnalyzeError(ErrorCode.CantFindMain, new Pos(0,0));
         }
         Function start_func = getFunction("_start");
-        List<Instruction> instructions = new ArrayList<>(global_ins);
-        instructions.add(new Instruction(Operation.stackalloc, (long)main_func.getReturnSlot()));
-        instructions.add(new Instruction(Operation.call, (long)getFunctionIndex(main_func)));
+        // 能在编译时算出来的全局变量初值直接写进全局变量，剩下的在 _start 里执行
+        InstructionBuffer instructions = GlobalInitializer.evaluate(this, global_ins);
+        instructions.add(Operation.stackalloc, main_func.getReturnSlot());
+        instructions.add(Operation.call, getFunctionIndex(main_func));
         start_func.setFunctionBody(instructions);
+        // 函数名放在所有全局变量和字符串后面
+        for(Function func: this.function_order){
+            func.setId(this.global_list.size());
+            this.global_list.add(func.getSymbolEntry());
+        }
         return start_func;
     }
 
     public void levelDown(){
-        HashMap<Integer, SymbolEntry> res = new HashMap<>();
-        for(Integer i: this.symbol_list.keySet()){
-            if(this.symbol_list.get(i).getLevel() == this.level){
-                res.put(i, this.symbol_list.get(i));
-                System.out.println("remove symbol " + this.symbol_list.get(i).getName() + "\t\t type: " + this.symbol_list.get(i).getType() + "\t\t level: " + this.level);
+        if(this.level >= 0 && this.level < this.scope_stack.size()){
+            List<SymbolEntry> scope = this.scope_stack.get(this.level);
+            for(SymbolEntry se: scope){
+                System.out.println("remove symbol " + se.getName() + "\t\t type: " + se.getType() + "\t\t level: " + this.level);
+                removeSymbol(se);
             }
-        }
-        for(Integer i : res.keySet()){
-            this.symbol_list.remove(i);
+            scope.clear();
         }
         this.level--;
     }
 
-    public int getLevel() { return this.level; }
-
-    public void setLevel(int level) { this.level = level;}
-
-    public int getFunctionIndex(Function func) {
-        List<Function> func_list = new ArrayList<>();
-        for (String name: getFunctionList().keySet()) {
-            if(!this.isSTDFunction(name)){
-                func_list.add(getFunctionList().get(name));
+    private void removeSymbol(SymbolEntry se){
+        SymbolEntry head = this.symbol_list.get(se.getName());
+        if(head == se){
+            if(se.shadowed == null){
+                this.symbol_list.remove(se.getName());
+            }
+            else{
+                this.symbol_list.put(se.getName(), se.shadowed);
             }
         }
-        Collections.sort(func_list);
-        int i = 0;
-        for(Function f: func_list){
-            if(f.equals(func)){
-                return i;
+        else{
+            SymbolEntry prev = head;
+            while(prev != null && prev.shadowed != se){
+                prev = prev.shadowed;
+            }
+            if(prev != null){
+                prev.shadowed = se.shadowed;
             }
-            i++;
         }
-        return -1;
+        se.shadowed = null;
     }
+
+    public int getLevel() { return this.level; }
+
+    public void setLevel(int level) { this.level = level;}
+
+    public int getFunctionIndex(Function func) { return func.getIndex(); }
 }
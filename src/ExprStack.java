@@ -1,5 +1,3 @@
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Stack;
 
 public class ExprStack {
@@ -28,6 +26,10 @@ public class ExprStack {
   // 当前计算结果的类型
   TokenType type;
 
+  // 最近一次生成比较运算的指令序列和生成完以后的长度，用来判断条件表达式是不是以比较结尾
+  InstructionBuffer comparison_buf;
+  int comparison_end = -1;
+
   public int getIndex(TokenType tokenType){
     if(tokenType == TokenType.PLUS){
       return 0;
@@ -57,107 +59,112 @@ public class ExprStack {
     return -1;
   }
 
-  public List<Instruction> generateInstruction(TokenType top, TokenType type){
-    List<Instruction> res_ins = new ArrayList<>();
+  // 直接把指令写进 buf，不再为每个运算符新建列表
+  public void generateInstruction(InstructionBuffer buf, TokenType top, TokenType type){
     switch (top) {
       case LT:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.cmp_i));
+          buf.add(Operation.cmp_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.cmp_f));
-        res_ins.add(new Instruction(Operation.set_lt));
+          buf.add(Operation.cmp_f);
+        buf.add(Operation.set_lt);
         break;
       case LE:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.cmp_i));
+          buf.add(Operation.cmp_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.cmp_f));
-        res_ins.add(new Instruction(Operation.set_gt));
-        res_ins.add(new Instruction(Operation.not));
+          buf.add(Operation.cmp_f);
+        buf.add(Operation.set_gt);
+        buf.add(Operation.not);
         break;
       case GT:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.cmp_i));
+          buf.add(Operation.cmp_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.cmp_f));
-        res_ins.add(new Instruction(Operation.set_gt));
+          buf.add(Operation.cmp_f);
+        buf.add(Operation.set_gt);
         break;
       case GE:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.cmp_i));
+          buf.add(Operation.cmp_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.cmp_f));
-        res_ins.add(new Instruction(Operation.set_lt));
-        res_ins.add(new Instruction(Operation.not));
+          buf.add(Operation.cmp_f);
+        buf.add(Operation.set_lt);
+        buf.add(Operation.not);
         break;
       case PLUS:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.add_i));
+          buf.add(Operation.add_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.add_f));
+          buf.add(Operation.add_f);
         break;
       case MINUS:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.sub_i));
+          buf.add(Operation.sub_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.sub_f));
+          buf.add(Operation.sub_f);
         break;
       case MUL:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.mul_i));
+          buf.add(Operation.mul_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.mul_f));
+          buf.add(Operation.mul_f);
         break;
       case DIV:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.div_i));
+          buf.add(Operation.div_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.div_f));
+          buf.add(Operation.div_f);
         break;
       case EQ:
         if(type == TokenType.INT_KW)
-          res_ins.add(new Instruction(Operation.cmp_i));
+          buf.add(Operation.cmp_i);
         else if(type == TokenType.DOUBLE_KW)
-          res_ins.add(new Instruction(Operation.cmp_f));
-        res_ins.add(new Instruction(Operation.not));
+          buf.add(Operation.cmp_f);
+        buf.add(Operation.not);
         break;
       case NEQ:
         if(type == TokenType.INT_KW)
-        res_ins.add(new Instruction(Operation.cmp_i));
+        buf.add(Operation.cmp_i);
       else if(type == TokenType.DOUBLE_KW)
-        res_ins.add(new Instruction(Operation.cmp_f));
+        buf.add(Operation.cmp_f);
         break;
     }
-    return res_ins;
+    if(top == TokenType.LT || top == TokenType.LE || top == TokenType.GT || top == TokenType.GE
+        || top == TokenType.EQ || top == TokenType.NEQ){
+      this.comparison_buf = buf;
+      this.comparison_end = buf.size();
+    }
+  }
+
+  // buf 最后生成的是不是比较运算（中间没有再生成别的指令）
+  public boolean endsWithComparison(InstructionBuffer buf){
+    return buf == this.comparison_buf && buf.size() == this.comparison_end;
   }
 
 
-  public List<Instruction> addTokenAndGenerateInstruction(TokenType tt, TokenType type){
-    List<Instruction> instructions=new ArrayList<>();
+  public void addTokenAndGenerateInstruction(InstructionBuffer buf, TokenType tt, TokenType type){
     if (operation_stack.empty()){
       operation_stack.push(tt);
-      return instructions;
+      return;
     }
 
     TokenType top= operation_stack.peek();
     while (priority[getIndex(top)][getIndex(tt)] > 0){
       operation_stack.pop();
-      instructions.addAll(generateInstruction(top, type));
+      generateInstruction(buf, top, type);
       if (operation_stack.empty() || top == TokenType.L_PAREN)
         break;
       top = operation_stack.peek();
     }
     if(tt != TokenType.R_PAREN)
       operation_stack.push(tt);
-    return instructions;
   }
 
-  public List<Instruction> addAllReset(TokenType type){
-    List<Instruction> instructions=new ArrayList<>();
+  public void addAllReset(InstructionBuffer buf, TokenType type){
     while(!operation_stack.empty()){
-      instructions.addAll(generateInstruction(operation_stack.pop(), type));
+      generateInstruction(buf, operation_stack.pop(), type);
     }
-    return instructions;
   }
 
   public void push(TokenType type){
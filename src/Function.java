@@ -3,7 +3,7 @@ import java.util.List;
 
 public class Function implements Comparable<Function>{
   // 函数体
-  List<Instruction> function_body;
+  InstructionBuffer function_body;
 
   // 参数
   List<SymbolEntry> param_table;
@@ -13,6 +13,8 @@ public class Function implements Comparable<Function>{
   List<SymbolEntry> local_table;
   // 局部变量slot
   int local_slot;
+  // 声明时没有初始化的局部变量的slot，它们一开始的值依赖栈帧清零
+  List<Integer> uninitialized_locals = new ArrayList<>();
   // 函数名
   String name;
   // 返回值类型
@@ -22,6 +24,9 @@ public class Function implements Comparable<Function>{
 
   SymbolEntry se;
 
+  // 函数编号，库函数没有编号，为 -1
+  int index = -1;
+
   public Function(SymbolEntry se, String name, Pos pos, TokenType return_type) {
     this.name = name;//main 这种
     this.pos = pos;
@@ -40,7 +45,7 @@ public class Function implements Comparable<Function>{
 
   public void setLocalSlot(int local_slot) { this.local_slot = local_slot; }
 
-  public void setFunctionBody(List<Instruction> function_body) { this.function_body = function_body; }
+  public void setFunctionBody(InstructionBuffer function_body) { this.function_body = function_body; }
 
   public int getReturnSlot() {
     if(this.return_type == TokenType.INT_KW || this.return_type == TokenType.DOUBLE_KW){
@@ -59,11 +64,23 @@ public class Function implements Comparable<Function>{
     this.local_table = locals;
   }
 
+  public List<Integer> getUninitializedLocals() { return uninitialized_locals; }
+
+  public void setUninitializedLocals(List<Integer> uninitialized_locals) {
+    this.uninitialized_locals = uninitialized_locals;
+  }
+
   public int getId() { return se.getId(); }
 
   public void setId(int id) { this.se.setId(id); }
 
-  public List<Instruction>  getFunctionBody(){ return this.function_body; }
+  public SymbolEntry getSymbolEntry() { return this.se; }
+
+  public int getIndex() { return index; }
+
+  public void setIndex(int index) { this.index = index; }
+
+  public InstructionBuffer getFunctionBody(){ return this.function_body; }
 
   public List<SymbolEntry> getSymbolTable() {
     List<SymbolEntry> list = new ArrayList<>(this.param_table);
@@ -106,6 +123,30 @@ public class Function implements Comparable<Function>{
     return false;
   }
 
+  // 库函数对应的指令，不是库函数时返回 null
+  public Operation getSTDOperation(){
+    switch (this.se.getName()) {
+      case "getint":
+        return Operation.scan_i;
+      case "getchar":
+        return Operation.scan_c;
+      case "getdouble":
+        return Operation.scan_f;
+      case "putint":
+        return Operation.print_i;
+      case "putchar":
+        return Operation.print_c;
+      case "putdouble":
+        return Operation.print_f;
+      case "putstr":
+        return Operation.print_s;
+      case "putln":
+        return Operation.println;
+      default:
+        return null;
+    }
+  }
+
   @Override
   public int compareTo(Function arg0) {
     return this.getId() - arg0.getId();
@@ -0,0 +1,129 @@
+/**
+ * 编译时计算全局变量的初值
+ * 全局变量的初始化代码是一段段 globa g; 表达式; store64，表达式能算成常数的直接写进全局变量的初值，
+ * 不用在 _start 里执行；读到前面已经算好的全局变量时用它的值
+ * 遇到调用或输入输出就停下，后面的全部留在 _start 里按原来的顺序执行
+ */
+public class GlobalInitializer {
+    private GlobalInitializer() {
+    }
+
+    /**
+     * 算出能在编译时确定的初值，写到对应全局变量的 value 里（Long）
+     *
+     * @return 还需要在 _start 里执行的初始化代码
+     */
+    public static InstructionBuffer evaluate(Definition def_table, InstructionBuffer global_ins) {
+        // 全局变量当前的值，算不出来的是 null；没有初始化的全局变量是 0
+        Long[] known = new Long[def_table.getGlobalListCount()];
+        for (SymbolEntry g : def_table.getGlobalList()) {
+            if (g.getValue() == null) {
+                known[g.getId()] = 0L;
+            }
+        }
+        InstructionBuffer runtime = new InstructionBuffer(global_ins.size());
+        int start = 0;
+        int depth = 0;
+        for (int i = 0; i < global_ins.size(); i++) {
+            Operation opt = global_ins.getOpt(i);
+            int effect = StackEffect.of(opt, global_ins.getNum(i), def_table);
+            if (effect == StackEffect.UNKNOWN || !isPure(opt)) {
+                // 从这一段开始都留到运行时
+                start = copyRest(runtime, global_ins, start);
+                break;
+            }
+            depth += effect;
+            if (depth != 0) {
+                continue;
+            }
+            // [start, i] 是一条完整的初始化
+            Long value = evaluateSegment(global_ins, start, i, known);
+            int target = (int) global_ins.getNum(start);
+            if (value != null) {
+                known[target] = value;
+                def_table.getGlobalList().get(target).setValue(value);
+                System.out.println("global " + target + " = " + value);
+            }
+            else {
+                if (global_ins.getOpt(start) == Operation.globa) {
+                    known[target] = null;
+                }
+                for (int j = start; j <= i; j++) {
+                    runtime.add(global_ins.getOpt(j), global_ins.getNum(j));
+                }
+            }
+            start = i + 1;
+        }
+        copyRest(runtime, global_ins, start);
+        return runtime;
+    }
+
+    // 把 [start, size) 原样接到 runtime 后面
+    private static int copyRest(InstructionBuffer runtime, InstructionBuffer global_ins, int start) {
+        for (int j = start; j < global_ins.size(); j++) {
+            runtime.add(global_ins.getOpt(j), global_ins.getNum(j));
+        }
+        return global_ins.size();
+    }
+
+    // globa g; 表达式; store64 的表达式能算成常数时返回这个常数，否则返回 null
+    private static Long evaluateSegment(InstructionBuffer code, int from, int to, Long[] known) {
+        if (code.getOpt(from) != Operation.globa || code.getOpt(to) != Operation.store64) {
+            return null;
+        }
+        // 已知的全局变量换成常数，再交给常量折叠
+        InstructionBuffer expr = new InstructionBuffer(to - from);
+        expr.setFolding(true);
+        for (int j = from + 1; j < to; j++) {
+            Operation opt = code.getOpt(j);
+            if (opt == Operation.globa && j + 1 < to && code.getOpt(j + 1) == Operation.load64) {
+                Long value = (int) code.getNum(j) < known.length ? known[(int) code.getNum(j)] : null;
+                if (value == null) {
+                    return null;
+                }
+                expr.add(Operation.push, value);
+                j++;
+            }
+            else if (opt.getSize() > 0) {
+                expr.add(opt, code.getNum(j));
+            }
+            else {
+                expr.add(opt);
+            }
+        }
+        if (expr.size() != 1 || expr.getOpt(0) != Operation.push) {
+            return null;
+        }
+        return expr.getNum(0);
+    }
+
+    // 没有调用、输入输出，只读写全局变量本身
+    private static boolean isPure(Operation opt) {
+        switch (opt) {
+            case push:
+            case globa:
+            case load64:
+            case store64:
+            case add_i:
+            case sub_i:
+            case mul_i:
+            case div_i:
+            case add_f:
+            case sub_f:
+            case mul_f:
+            case div_f:
+            case cmp_i:
+            case cmp_f:
+            case not:
+            case neg_i:
+            case neg_f:
+            case itof:
+            case ftoi:
+            case set_lt:
+            case set_gt:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 把小的叶子函数（函数体里没有调用）在调用处展开
+ * 调用处：stackalloc R; 参数...; call f
+ * 展开成：每个参数存到新的局部变量里; 被调函数体; 有返回值时再把返回值读出来
+ * 被调函数的 arga / loca 改成调用者新分配的局部变量，ret 改成跳到展开代码的末尾
+ * 常数或调用者变量作参数时直接替换参数的读取；只在最后 return 一次时返回值直接留在栈上
+ */
+public class Inliner {
+    // 被调函数最多多少条指令才展开
+    private static final int MAX_CALLEE_SIZE = 24;
+
+    // 一个函数因为展开最多增加多少条指令
+    private static final int MAX_GROWTH = 2048;
+
+    Function function;
+    Definition def_table;
+
+    // 调用者原来的指令，跳转换算成绝对下标
+    InstructionBuffer code;
+    int[] targets;
+    // 每个 call 对应的 stackalloc 下标，不展开的为 -1
+    int[] site_start;
+    int[][] site_bounds;
+
+    // 正在生成的一处调用展开后的代码，调用处中间没有跳转，展开的代码只在自己里面跳
+    InstructionBuffer out;
+
+    // 下一个可用的局部变量 slot，一次展开结束后可以给下一次展开复用
+    int next_local;
+    int max_local;
+
+    private Inliner(Function function, Definition def_table) {
+        this.function = function;
+        this.def_table = def_table;
+        this.code = function.getFunctionBody();
+        this.next_local = function.getLocalSlot();
+        this.max_local = function.getLocalSlot();
+    }
+
+    /**
+     * 对一个函数里所有可以展开的调用做展开，需要时增加函数的 local slot
+     * _start 只调用一次 main，不往里展开，否则 main 会被当作没用的函数去掉
+     */
+    public static void optimize(Function function, Definition def_table) {
+        if (function.getIndex() == 0) {
+            return;
+        }
+        Inliner inliner = new Inliner(function, def_table);
+        if (inliner.findSites()) {
+            function.setFunctionBody(inliner.rewrite());
+            function.setLocalSlot(inliner.max_local);
+        }
+    }
+
+    /**
+     * 能不能展开：不是库函数、没有调用、足够小
+     */
+    public static boolean isInlinable(Function callee) {
+        if (callee == null || callee.isSTDFunction() || callee.getIndex() <= 0 || callee.getFunctionBody() == null) {
+            return false;
+        }
+        InstructionBuffer body = callee.getFunctionBody();
+        if (body.size() > MAX_CALLEE_SIZE) {
+            return false;
+        }
+        for (int i = 0; i < body.size(); i++) {
+            switch (body.getOpt(i)) {
+                case call:
+                case callname:
+                case stackalloc:
+                case popn:
+                    return false;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    // 找出所有要展开的调用，返回有没有
+    private boolean findSites() {
+        int size = code.size();
+        targets = ControlFlowGraph.branchTargets(code);
+        boolean[] is_target = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (targets[i] >= 0 && targets[i] <= size) {
+                is_target[targets[i]] = true;
+            }
+        }
+        site_start = new int[size];
+        site_bounds = new int[size][];
+        boolean found = false;
+        int growth = 0;
+        for (int c = 0; c < size; c++) {
+            site_start[c] = -1;
+            if (code.getOpt(c) != Operation.call || code.getNum(c) == function.getIndex()) {
+                continue;
+            }
+            Function callee = def_table.getFunctionOrder().get((int) code.getNum(c));
+            if (!isInlinable(callee) || growth + callee.getFunctionBody().size() > MAX_GROWTH
+                || StackEffect.depths(callee.getFunctionBody(), def_table) == null) {
+                continue;
+            }
+            int ret_slot = callee.getReturnSlot();
+            for (int s = c - 1; s >= 0; s--) {
+                if (code.getOpt(s) != Operation.stackalloc || code.getNum(s) != ret_slot) {
+                    continue;
+                }
+                int[] bounds = StackEffect.splitArguments(code, s + 1, c, callee.getParamSlot(), def_table);
+                if (bounds == null) {
+                    continue;
+                }
+                boolean crosses = false;
+                for (int i = s + 1; i <= c; i++) {
+                    crosses |= is_target[i] || targets[i] >= 0;
+                }
+                if (!crosses) {
+                    site_start[c] = s;
+                    site_bounds[c] = bounds;
+                    growth += callee.getFunctionBody().size();
+                    found = true;
+                }
+                break;
+            }
+        }
+        return found;
+    }
+
+    // 每个最外层的调用处换成展开后的代码
+    private InstructionBuffer rewrite() {
+        int size = code.size();
+        List<ControlFlowGraph.Replacement> replacements = new ArrayList<>();
+        int i = 0;
+        while (i < size) {
+            int call = findSiteStartingAt(i, size);
+            if (call < 0) {
+                i++;
+                continue;
+            }
+            ControlFlowGraph.Replacement r = new ControlFlowGraph.Replacement(i, call + 1);
+            out = r.getCode();
+            inline(i, call);
+            replacements.add(r);
+            i = call + 1;
+        }
+        return ControlFlowGraph.replace(code, replacements);
+    }
+
+    // 输出原来代码里 [from, to) 的指令（调用处的参数，中间没有跳转），遇到要展开的调用就展开
+    private void emitRange(int from, int to) {
+        int i = from;
+        while (i < to) {
+            int call = findSiteStartingAt(i, to);
+            if (call >= 0) {
+                inline(i, call);
+                i = call + 1;
+                continue;
+            }
+            out.add(code.getOpt(i), code.getNum(i));
+            i++;
+        }
+    }
+
+    // 从 start 开始、在 to 之前结束的调用，取范围最大的那个
+    private int findSiteStartingAt(int start, int to) {
+        if (code.getOpt(start) != Operation.stackalloc) {
+            return -1;
+        }
+        for (int c = to - 1; c > start; c--) {
+            if (site_start[c] == start) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    private void inline(int start, int call) {
+        Function callee = def_table.getFunctionOrder().get((int) code.getNum(call));
+        InstructionBuffer body = callee.getFunctionBody();
+        int ret_slot = callee.getReturnSlot();
+        int param_slot = callee.getParamSlot();
+        int[] bounds = site_bounds[call];
+
+        // 最后是 arga 0; 表达式; store64; ret 并且只有这一处返回时，返回值直接留在栈上
+        int return_from = directReturn(callee);
+        // ret 会丢掉被调函数留在栈上的值，展开以后要自己弹出
+        int[] depths = StackEffect.depths(body, def_table);
+
+        // 给返回值、参数、被调函数的局部变量分配新的局部变量
+        int saved = next_local;
+        int ret_local = next_local;
+        next_local += return_from >= 0 ? 0 : ret_slot;
+        int param_base = next_local;
+        next_local += param_slot;
+        int local_base = next_local;
+        next_local += callee.getLocalSlot();
+        max_local = Math.max(max_local, next_local);
+
+        // 参数里有没有调用或者写变量
+        boolean[] has_effect = new boolean[param_slot];
+        for (int k = 0; k < param_slot; k++) {
+            for (int i = bounds[k]; i < bounds[k + 1]; i++) {
+                Operation opt = code.getOpt(i);
+                has_effect[k] |= opt == Operation.call || opt == Operation.callname || opt == Operation.store64;
+            }
+        }
+        // 参数是常数或者调用者的变量，并且被调函数不写这个参数时，直接替换掉参数的读取
+        boolean[] substitute = new boolean[param_slot];
+        for (int k = 0; k < param_slot; k++) {
+            // 别的参数可能改全局变量，全局变量要在原来的位置读
+            boolean others_have_effect = false;
+            for (int m = 0; m < param_slot; m++) {
+                others_have_effect |= m != k && has_effect[m];
+            }
+            substitute[k] = isSimpleArgument(bounds[k], bounds[k + 1], body, others_have_effect)
+                && !writesArg(body, k + ret_slot);
+            if (!substitute[k]) {
+                out.add(Operation.loca, param_base + k);
+                emitRange(bounds[k], bounds[k + 1]);
+                out.add(Operation.store64);
+            }
+        }
+        // 被调函数的局部变量本来在新栈帧里是 0
+        for (int slot : callee.getUninitializedLocals()) {
+            out.add(Operation.loca, local_base + slot);
+            out.add(Operation.push, 0);
+            out.add(Operation.store64);
+        }
+
+        // 被调函数里第 i 条指令展开后的位置，跳转目标最后再换算
+        int[] position = new int[body.size() + 1];
+        List<Integer> branches = new ArrayList<>();
+        List<Integer> branch_targets = new ArrayList<>();
+        for (int i = 0; i < body.size(); i++) {
+            position[i] = out.size();
+            Operation opt = body.getOpt(i);
+            long num = body.getNum(i);
+            if (return_from >= 0 && (i == return_from || i >= body.size() - 2)) {
+                // arga 0、store64 和 ret 都不要了
+                continue;
+            }
+            if (opt == Operation.arga && num >= ret_slot && substitute[(int) num - ret_slot]) {
+                int k = (int) num - ret_slot;
+                // 后面一定是 load64
+                if (code.getOpt(bounds[k]) == Operation.push) {
+                    out.add(Operation.push, code.getNum(bounds[k]));
+                    position[++i] = out.size() - 1;
+                }
+                else {
+                    out.add(code.getOpt(bounds[k]), code.getNum(bounds[k]));
+                }
+            }
+            else if (opt == Operation.arga) {
+                out.add(Operation.loca, num < ret_slot ? ret_local : param_base + num - ret_slot);
+            }
+            else if (opt == Operation.loca) {
+                out.add(Operation.loca, local_base + num);
+            }
+            else if (opt == Operation.ret) {
+                if (depths[i] > 0) {
+                    out.add(Operation.popn, depths[i]);
+                }
+                branches.add(out.size());
+                branch_targets.add(body.size());
+                out.add(Operation.br, 0);
+            }
+            else if (ControlFlowGraph.isBranch(opt)) {
+                branches.add(out.size());
+                branch_targets.add((int) (i + 1 + num));
+                out.add(opt, 0);
+            }
+            else {
+                out.add(opt, num);
+            }
+        }
+        position[body.size()] = out.size();
+        for (int k = 0; k < branches.size(); k++) {
+            int at = branches.get(k);
+            out.setNum(at, position[branch_targets.get(k)] - (at + 1));
+        }
+        if (ret_slot > 0 && return_from < 0) {
+            out.add(Operation.loca, ret_local);
+            out.add(Operation.load64);
+        }
+        next_local = saved;
+    }
+
+    /**
+     * 被调函数以 arga 0; 表达式; store64; ret 结尾，而且只有这一个 ret、这一个 arga 0，
+     * 表达式中间也不是跳转目标时，返回 arga 0 的下标，否则返回 -1
+     */
+    private int directReturn(Function callee) {
+        InstructionBuffer body = callee.getFunctionBody();
+        int n = body.size();
+        if (callee.getReturnSlot() != 1 || n < 4 || body.getOpt(n - 1) != Operation.ret
+            || body.getOpt(n - 2) != Operation.store64) {
+            return -1;
+        }
+        int from = -1;
+        for (int i = 0; i < n; i++) {
+            Operation opt = body.getOpt(i);
+            if (opt == Operation.arga && body.getNum(i) == 0) {
+                if (from >= 0) {
+                    return -1;
+                }
+                from = i;
+            }
+            if (opt == Operation.ret && i != n - 1) {
+                return -1;
+            }
+        }
+        if (from < 0 || StackEffect.splitArguments(body, from + 1, n - 2, 1, def_table) == null) {
+            return -1;
+        }
+        // 返回值下面不能还压着别的值
+        int[] depths = StackEffect.depths(body, def_table);
+        if (depths == null || depths[from] != 0) {
+            return -1;
+        }
+        for (int i = 0; i < n; i++) {
+            if (ControlFlowGraph.isBranch(body.getOpt(i))) {
+                long target = i + 1 + body.getNum(i);
+                if (target > from && target <= n) {
+                    return -1;
+                }
+            }
+        }
+        return from;
+    }
+
+    // 参数是常数、调用者的局部变量或参数；全局变量只在被调函数不碰全局变量、别的参数也不会改全局变量时才算
+    private boolean isSimpleArgument(int from, int to, InstructionBuffer callee_body, boolean others_have_effect) {
+        if (to - from == 1) {
+            return code.getOpt(from) == Operation.push;
+        }
+        if (to - from != 2 || code.getOpt(from + 1) != Operation.load64) {
+            return false;
+        }
+        Operation opt = code.getOpt(from);
+        if (opt == Operation.loca || opt == Operation.arga) {
+            return true;
+        }
+        if (opt == Operation.globa && !others_have_effect) {
+            for (int i = 0; i < callee_body.size(); i++) {
+                if (callee_body.getOpt(i) == Operation.globa) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // 被调函数有没有写（或者取了地址但不是马上读）参数
+    private static boolean writesArg(InstructionBuffer body, long arg) {
+        for (int i = 0; i < body.size(); i++) {
+            if (body.getOpt(i) == Operation.arga && body.getNum(i) == arg
+                && (i + 1 >= body.size() || body.getOpt(i + 1) != Operation.load64)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.Arrays;
+
+/**
+ * 紧凑的指令序列，按结构体数组存放
+ * 操作码存成 Operation 的序号（1 字节），操作数存成 long，没有操作数的指令操作数为 0
+ * 追加一条指令不新建任何对象，只有需要打印或者调试的时候才用 get 还原成 Instruction
+ */
+public class InstructionBuffer {
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    byte[] ops;
+    long[] nums;
+    int size = 0;
+
+    // 常量折叠不能越过的位置：这之前的指令可能是跳转目标，不能被合并
+    int barrier = 0;
+
+    // 追加指令时是否做常量折叠，只有 Analyser 生成代码时打开
+    boolean folding = false;
+
+    public InstructionBuffer() {
+        this(64);
+    }
+
+    public InstructionBuffer(int capacity) {
+        this.ops = new byte[Math.max(capacity, 4)];
+        this.nums = new long[Math.max(capacity, 4)];
+    }
+
+    /**
+     * 复制一份
+     */
+    public InstructionBuffer(InstructionBuffer other) {
+        this(other.size + 4);
+        append(other);
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > ops.length) {
+            int newCapacity = Math.max(capacity, ops.length * 2);
+            ops = Arrays.copyOf(ops, newCapacity);
+            nums = Arrays.copyOf(nums, newCapacity);
+        }
+    }
+
+    /**
+     * 追加一条没有操作数的指令
+     *
+     * @return 这条指令的下标
+     */
+    public int add(Operation opt) {
+        if (folding) {
+            int folded = ConstantFolder.fold(this, opt);
+            if (folded >= 0) {
+                return folded;
+            }
+        }
+        return add(opt, 0);
+    }
+
+    /**
+     * 追加一条指令
+     *
+     * @return 这条指令的下标
+     */
+    public int add(Operation opt, long num) {
+        if (size == ops.length) {
+            ensureCapacity(size + 1);
+        }
+        ops[size] = (byte) opt.ordinal();
+        nums[size] = num;
+        return size++;
+    }
+
+    public void append(InstructionBuffer other) {
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.ops, 0, ops, size, other.size);
+        System.arraycopy(other.nums, 0, nums, size, other.size);
+        size += other.size;
+    }
+
+    public int size() { return size; }
+
+    /**
+     * 丢掉下标 size 及之后的指令
+     */
+    public void truncate(int size) {
+        if (size < this.barrier) {
+            throw new Error("truncate across a jump target");
+        }
+        this.size = size;
+    }
+
+    public int getBarrier() { return barrier; }
+
+    public void setFolding(boolean folding) { this.folding = folding; }
+
+    public boolean isEmpty() { return size == 0; }
+
+    public Operation getOpt(int i) { return OPERATIONS[ops[i]]; }
+
+    public long getNum(int i) { return nums[i]; }
+
+    /**
+     * 这条指令在二进制里有没有操作数
+     */
+    public boolean hasNum(int i) { return getOpt(i).getSize() > 0; }
+
+    public void setOpt(int i, Operation opt) { ops[i] = (byte) opt.ordinal(); }
+
+    public void setNum(int i, long num) { nums[i] = num; }
+
+    /**
+     * 最后一条指令，没有指令时返回 null
+     */
+    public Operation lastOpt() {
+        if (size == 0) {
+            return null;
+        }
+        return getOpt(size - 1);
+    }
+
+    /**
+     * 当前位置，作为跳转目标使用
+     * 跳转目标之前的指令之后不会再被常量折叠合并
+     */
+    public int label() {
+        barrier = size;
+        return size;
+    }
+
+    /**
+     * 追加一条跳转指令，偏移之后用 patch 回填
+     *
+     * @return 回填用的下标
+     */
+    public int addJump(Operation opt) {
+        return add(opt, 0);
+    }
+
+    /**
+     * 回填跳转指令，使它跳到 label 处（偏移相对于下一条指令）
+     */
+    public void patch(int slot, int label) {
+        nums[slot] = label - (slot + 1);
+    }
+
+    /**
+     * 还原成 Instruction 对象，只在打印和调试时使用
+     */
+    public Instruction get(int i) {
+        if (hasNum(i)) {
+            return new Instruction(getOpt(i), nums[i]);
+        }
+        return new Instruction(getOpt(i));
+    }
+}
@@ -0,0 +1,299 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 循环不变量外提
+ * 只处理 while 倒置以后的循环：pre: br cond; t: 循环体; cond: 条件; j: br_true/br_false t
+ * 循环里不写的变量和常数算出来的表达式，在进入循环时算一次存到新的局部变量里，循环里改成读这个局部变量
+ * 进入循环的 br cond 换成一份条件判断，条件成立才算外提的表达式，再进入循环体；循环一次也不执行时不多花指令
+ * 只外提每次循环都会执行到的（支配向回跳的跳转的）、不会出错的、划算的表达式
+ */
+public class LoopInvariantMotion {
+    // 最多做多少次外提，每次处理一个循环
+    private static final int MAX_ROUNDS = 32;
+
+    // 外提的表达式要在循环执行这么多次以内省回多出来的 loca 和 store64
+    private static final int MIN_TRIPS = 3;
+
+    Function function;
+    Definition def_table;
+    InstructionBuffer code;
+    int size;
+    int[] targets;
+
+    private LoopInvariantMotion(Function function, Definition def_table) {
+        this.function = function;
+        this.def_table = def_table;
+        this.code = function.getFunctionBody();
+        this.size = code.size();
+        this.targets = ControlFlowGraph.branchTargets(code);
+    }
+
+    /**
+     * 对一个函数里的循环做不变量外提，返回有没有改动
+     */
+    public static boolean optimize(Function function, Definition def_table) {
+        boolean changed = false;
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            if (!new LoopInvariantMotion(function, def_table).hoistOne()) {
+                break;
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    // 从里层循环开始找，外提成功一个就返回
+    private boolean hoistOne() {
+        for (int j = 0; j < size; j++) {
+            int t = targets[j];
+            if (t < 0 || t > j) {
+                continue;
+            }
+            InstructionBuffer result = hoist(t, j);
+            if (result != null) {
+                function.setFunctionBody(result);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private InstructionBuffer hoist(int t, int j) {
+        // 进入循环的 br cond，条件 [cond, j) 里没有跳转，也不能从中间跳进去
+        Operation back = code.getOpt(j);
+        if (t < 1 || code.getOpt(t - 1) != Operation.br || back == Operation.br) {
+            return null;
+        }
+        int pre = t - 1;
+        int cond = targets[pre];
+        if (cond <= t || cond > j) {
+            return null;
+        }
+        boolean[] is_target = isTarget();
+        for (int i = cond; i < j; i++) {
+            if (targets[i] >= 0 || code.getOpt(i) == Operation.ret || (i > cond && is_target[i])) {
+                return null;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if ((i < t || i > j) && i != pre && targets[i] >= t && targets[i] <= j) {
+                // 有别的地方跳进循环里，不是只从循环前进入
+                return null;
+            }
+        }
+
+        boolean[] every = executedEveryIteration(t, j, is_target);
+        // 循环次数能算出来并且太少时外提不划算
+        int[] trips = new LoopUnroller(function, def_table).tripCount(t, j);
+        if (trips != null && every[trips[1] - t] && trips[0] < MIN_TRIPS) {
+            return null;
+        }
+        List<int[]> ranges = findInvariants(t, j, is_target, every);
+        // 相同的表达式共用一个局部变量，划算的才外提
+        Map<String, List<int[]>> groups = new LinkedHashMap<>();
+        for (int[] range : ranges) {
+            groups.computeIfAbsent(StackValue.key(code, range[0], range[1]), k -> new ArrayList<>()).add(range);
+        }
+        List<int[]> replaced = new ArrayList<>();
+        List<int[]> hoisted = new ArrayList<>();
+        for (List<int[]> group : groups.values()) {
+            int[] first = group.get(0);
+            int length = first[1] - first[0] + 1;
+            // 外提多 loca 和 store64 两条，每次循环每处省 length - 2 条
+            if (group.size() * (length - 2) * MIN_TRIPS <= length + 2) {
+                continue;
+            }
+            int slot = function.getLocalSlot();
+            function.setLocalSlot(slot + 1);
+            hoisted.add(new int[]{first[0], first[1], slot});
+            for (int[] range : group) {
+                replaced.add(new int[]{range[0], range[1], slot});
+            }
+        }
+        if (hoisted.isEmpty()) {
+            return null;
+        }
+
+        // 先判断一次条件，不成立直接跳出循环；成立时算外提的表达式，顺序进入循环体
+        List<ControlFlowGraph.Replacement> replacements = new ArrayList<>();
+        ControlFlowGraph.Replacement entry = new ControlFlowGraph.Replacement(pre, pre + 1);
+        InstructionBuffer out = entry.getCode();
+        for (int k = cond; k < j; k++) {
+            out.add(code.getOpt(k), code.getNum(k));
+        }
+        entry.addBranch(back == Operation.br_true ? Operation.br_false : Operation.br_true, j + 1);
+        for (int[] h : hoisted) {
+            out.add(Operation.loca, h[2]);
+            for (int k = h[0]; k <= h[1]; k++) {
+                out.add(code.getOpt(k), code.getNum(k));
+            }
+            out.add(Operation.store64);
+        }
+        replacements.add(entry);
+        replaced.sort((x, y) -> x[0] - y[0]);
+        for (int[] range : replaced) {
+            ControlFlowGraph.Replacement r = new ControlFlowGraph.Replacement(range[0], range[1] + 1);
+            r.getCode().add(Operation.loca, range[2]);
+            r.getCode().add(Operation.load64);
+            replacements.add(r);
+        }
+        System.out.println("hoist " + hoisted.size() + " expression(s) out of loop at " + t);
+        return ControlFlowGraph.replace(code, replacements);
+    }
+
+    private boolean[] isTarget() {
+        boolean[] is_target = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (targets[i] >= 0) {
+                is_target[targets[i]] = true;
+            }
+        }
+        return is_target;
+    }
+
+    /**
+     * 循环 [t, j] 里每条指令是不是每次循环都会执行：所在的基本块支配向回跳的块，也支配所有离开循环的块
+     * （ret、break 这样跳出循环的）；只看循环里的边
+     */
+    private boolean[] executedEveryIteration(int t, int j, boolean[] is_target) {
+        int n = j - t + 1;
+        // 每条指令所在的块，块用开头的下标（相对 t）表示
+        int[] block_of = new int[n];
+        List<Integer> starts = new ArrayList<>();
+        for (int i = t; i <= j; i++) {
+            boolean leader = i == t || is_target[i] || targets[i - 1] >= 0 || code.getOpt(i - 1) == Operation.ret;
+            if (leader) {
+                starts.add(i - t);
+            }
+            block_of[i - t] = starts.size() - 1;
+        }
+        int count = starts.size();
+        List<List<Integer>> predecessors = new ArrayList<>();
+        for (int b = 0; b < count; b++) {
+            predecessors.add(new ArrayList<>());
+        }
+        // j 所在的块是最后一个块，也会离开循环
+        BitSet exits = new BitSet(count);
+        exits.set(count - 1);
+        for (int b = 0; b < count; b++) {
+            int last = t + (b + 1 < count ? starts.get(b + 1) : n) - 1;
+            Operation opt = code.getOpt(last);
+            if (opt == Operation.ret || (targets[last] >= 0 && (targets[last] < t || targets[last] > j))) {
+                exits.set(b);
+            }
+            if (opt == Operation.ret) {
+                continue;
+            }
+            if (targets[last] >= t && targets[last] <= j && last != j) {
+                predecessors.get(block_of[targets[last] - t]).add(b);
+            }
+            if (opt != Operation.br && last < j) {
+                predecessors.get(block_of[last + 1 - t]).add(b);
+            }
+        }
+        // 迭代求支配集合，开头的块只被自己支配
+        BitSet[] dominators = new BitSet[count];
+        for (int b = 0; b < count; b++) {
+            dominators[b] = new BitSet(count);
+            if (b == 0) {
+                dominators[b].set(0);
+            }
+            else {
+                dominators[b].set(0, count);
+            }
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = 1; b < count; b++) {
+                BitSet d = new BitSet(count);
+                d.set(0, count);
+                for (int p : predecessors.get(b)) {
+                    d.and(dominators[p]);
+                }
+                d.set(b);
+                if (!d.equals(dominators[b])) {
+                    dominators[b] = d;
+                    changed = true;
+                }
+            }
+        }
+        BitSet always = new BitSet(count);
+        always.set(0, count);
+        for (int b = exits.nextSetBit(0); b >= 0; b = exits.nextSetBit(b + 1)) {
+            always.and(dominators[b]);
+        }
+        boolean[] every = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            every[k] = always.get(block_of[k]);
+        }
+        return every;
+    }
+
+    // 找出循环 [t, j] 里每次循环都执行的最大的不变表达式，返回 [开始, 结束] 的列表，按开始位置排好
+    private List<int[]> findInvariants(int t, int j, boolean[] is_target, boolean[] every) {
+        // 循环里写了哪些变量：后面不是 load64 的地址都是写
+        Set<Long> written = new HashSet<>();
+        boolean writes_globals = false;
+        for (int i = t; i <= j; i++) {
+            Operation opt = code.getOpt(i);
+            if (StackValue.isAddress(opt) && (i + 1 > j || code.getOpt(i + 1) != Operation.load64)) {
+                written.add(StackValue.variable(opt, code.getNum(i)));
+            }
+            // 调用可能写全局变量
+            writes_globals |= opt == Operation.call || opt == Operation.callname;
+        }
+
+        List<int[]> candidates = new ArrayList<>();
+        List<StackValue> stack = new ArrayList<>();
+        for (int i = t; i <= j; i++) {
+            // 基本块的边界，栈上的值不再跟踪
+            if (is_target[i]) {
+                stack.clear();
+            }
+            Operation opt = code.getOpt(i);
+            StackValue v = StackValue.step(stack, code, i);
+            if (v == null) {
+                // 其他指令不跟踪，之前的值都当作不知道
+                stack.clear();
+            }
+            else if (v.ops > 0 && every[i - t] && isInvariant(v, written, writes_globals)) {
+                candidates.add(new int[]{v.start, i});
+            }
+            if (ControlFlowGraph.isBranch(opt) || opt == Operation.ret) {
+                stack.clear();
+            }
+        }
+
+        // 表达式的区间要么嵌套要么不相交，留下最外层的
+        candidates.sort((x, y) -> x[0] != y[0] ? x[0] - y[0] : y[1] - x[1]);
+        List<int[]> ranges = new ArrayList<>();
+        int covered = -1;
+        for (int[] c : candidates) {
+            if (c[0] > covered) {
+                ranges.add(c);
+                covered = c[1];
+            }
+        }
+        return ranges;
+    }
+
+    // 没有副作用、不会出错，读的变量在循环里都没有被写过
+    private static boolean isInvariant(StackValue v, Set<Long> written, boolean writes_globals) {
+        if (!v.pure || v.trapping || (writes_globals && v.readsGlobals())) {
+            return false;
+        }
+        for (long r : v.reads) {
+            if (written.contains(r)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
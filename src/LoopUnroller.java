@@ -0,0 +1,268 @@
+import java.util.Collections;
+
+/**
+ * 循环次数是常数的 while 循环展开
+ * 只处理 while 倒置以后的形式，并且循环体是一个基本块（没有 if / break / continue）：
+ * loca i; push c0; store64; ...; br cond; start: 循环体; cond: i 和常数比较; br_true/br_false start
+ * 循环体里只有一处写 i：loca i; loca i; load64; push s; add_i/sub_i; store64
+ * 次数不多时完全展开，去掉条件判断；否则按能整除次数的倍数把循环体复制几遍，条件少判断几次
+ */
+public class LoopUnroller {
+    // 完全展开的最多次数，展开后的大小还受 Optimizer.unroll_budget 限制
+    private static final int MAX_FULL_TRIPS = 32;
+
+    // 模拟循环次数的上限，超过就不展开
+    private static final int MAX_TRIPS = 1 << 20;
+
+    Function function;
+    Definition def_table;
+    InstructionBuffer code;
+    int size;
+    int[] targets;
+    boolean[] is_target;
+    int increment_at;
+
+    LoopUnroller(Function function, Definition def_table) {
+        this.function = function;
+        this.def_table = def_table;
+        this.code = function.getFunctionBody();
+        this.size = code.size();
+        this.targets = ControlFlowGraph.branchTargets(code);
+        this.is_target = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (targets[i] >= 0) {
+                is_target[targets[i]] = true;
+            }
+        }
+    }
+
+    /**
+     * 展开一个函数里能展开的循环，返回有没有改动
+     */
+    public static boolean optimize(Function function, Definition def_table) {
+        boolean changed = false;
+        // 每次展开一个循环，展开以后下标都变了，重新找
+        for (int round = 0; round < 16; round++) {
+            if (!new LoopUnroller(function, def_table).unrollOne()) {
+                break;
+            }
+            changed = true;
+        }
+        return changed;
+    }
+
+    private boolean unrollOne() {
+        for (int j = 0; j < size; j++) {
+            int t = targets[j];
+            if (t < 0 || t > j || code.getOpt(j) == Operation.br) {
+                continue;
+            }
+            InstructionBuffer result = unroll(t, j);
+            if (result != null) {
+                function.setFunctionBody(result);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 倒置循环 [t - 1, j]（br cond; 循环体; 条件; 向回跳）的循环次数
+     * 条件是循环变量和常数比较，进入循环前循环变量是常数，循环体里只有一处 i = i ± s
+     * 循环里有 return / break 时实际次数可能更少
+     *
+     * @return {次数, 写循环变量的 loca 的下标}，不是这种循环或者次数太多时返回 null
+     */
+    int[] tripCount(int t, int j) {
+        // 条件：loca i; load64; 常数; cmp_i; [set_lt/set_gt;] br_true/br_false，常数也可以在左边
+        int set = code.getOpt(j - 1) == Operation.set_lt || code.getOpt(j - 1) == Operation.set_gt ? 1 : 0;
+        int cmp = j - 1 - set;
+        int cond = cmp - 3;
+        if (cond <= t || code.getOpt(cmp) != Operation.cmp_i) {
+            return null;
+        }
+        // 只有 br cond 进入循环
+        if (t < 1 || code.getOpt(t - 1) != Operation.br || targets[t - 1] != cond) {
+            return null;
+        }
+        long induction;
+        Long bound;
+        boolean swapped;
+        if (isLoad(cond)) {
+            induction = code.getNum(cond);
+            bound = constant(cond + 2);
+            swapped = false;
+        }
+        else if (isLoad(cond + 1)) {
+            induction = code.getNum(cond + 1);
+            bound = constant(cond);
+            swapped = true;
+        }
+        else {
+            return null;
+        }
+        if (bound == null) {
+            return null;
+        }
+        Long step = step(t, cond, induction);
+        Long initial = initial(t - 1, induction);
+        if (step == null || initial == null) {
+            return null;
+        }
+
+        // 模拟循环变量，算出循环次数
+        long value = initial;
+        int trips = 0;
+        while (taken(value, bound, swapped, code.getOpt(cmp + 1), code.getOpt(j))) {
+            trips++;
+            value += step;
+            if (trips > MAX_TRIPS) {
+                return null;
+            }
+        }
+        return new int[]{trips, increment_at};
+    }
+
+    // [t - 1, j] 是 br cond; 循环体; 条件; 向回跳
+    private InstructionBuffer unroll(int t, int j) {
+        int[] count = tripCount(t, j);
+        if (count == null) {
+            return null;
+        }
+        int trips = count[0];
+        int cond = targets[t - 1];
+        // 循环体是一个基本块：中间没有跳转，也没有别的跳转目标
+        for (int i = t; i < j; i++) {
+            if (targets[i] >= 0 || code.getOpt(i) == Operation.ret || (i > t && i != cond && is_target[i])) {
+                return null;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if ((i < t - 1 || i > j) && targets[i] >= t && targets[i] <= j) {
+                return null;
+            }
+        }
+        int body = cond - t;
+        int factor;
+        int budget = Optimizer.unroll_budget;
+        boolean full = trips <= MAX_FULL_TRIPS && (long) trips * body <= budget;
+        if (full) {
+            factor = trips;
+        }
+        else {
+            factor = 1;
+            // 循环体复制的遍数从大到小试能整除次数的
+            for (int f = Optimizer.unroll_factor; f > 1; f--) {
+                if (trips % f == 0 && (long) f * body + (j - cond + 2) <= budget) {
+                    factor = f;
+                    break;
+                }
+            }
+            if (factor == 1) {
+                return null;
+            }
+        }
+        System.out.println((full ? "fully unroll" : "unroll x" + factor) + " loop at " + t + ", trips: " + trips);
+
+        ControlFlowGraph.Replacement r = new ControlFlowGraph.Replacement(t - 1, j + 1);
+        InstructionBuffer out = r.getCode();
+        if (full) {
+            for (int k = 0; k < factor; k++) {
+                for (int i = t; i < cond; i++) {
+                    out.add(code.getOpt(i), code.getNum(i));
+                }
+            }
+        }
+        else {
+            // 次数能被 factor 整除，循环体连着执行 factor 遍以后再判断条件
+            out.add(Operation.br, factor * body);
+            for (int k = 0; k < factor; k++) {
+                for (int i = t; i < cond; i++) {
+                    out.add(code.getOpt(i), code.getNum(i));
+                }
+            }
+            for (int i = cond; i < j; i++) {
+                out.add(code.getOpt(i), code.getNum(i));
+            }
+            out.add(code.getOpt(j), 1 - (out.size() + 1));
+        }
+        return ControlFlowGraph.replace(code, Collections.singletonList(r));
+    }
+
+    // loca i; load64
+    private boolean isLoad(int at) {
+        return code.getOpt(at) == Operation.loca && code.getOpt(at + 1) == Operation.load64;
+    }
+
+    // push c 或者编译时算好值的 const 全局变量 globa g; load64，返回常数
+    private Long constant(int at) {
+        if (code.getOpt(at) == Operation.push) {
+            return code.getNum(at);
+        }
+        if (code.getOpt(at) == Operation.globa && at + 1 < size && code.getOpt(at + 1) == Operation.load64) {
+            int id = (int) code.getNum(at);
+            if (id < 0 || id >= def_table.getGlobalListCount()) {
+                return null;
+            }
+            SymbolEntry g = def_table.getGlobalList().get(id);
+            if (g.isConstant() && g.getValue() instanceof Long) {
+                return (Long) g.getValue();
+            }
+        }
+        return null;
+    }
+
+    // 循环体 [t, cond) 里只有一处写循环变量，并且是 i = i ± s，返回每次的变化量，位置记在 increment_at
+    private Long step(int t, int cond, long induction) {
+        Long step = null;
+        for (int i = t; i < cond; i++) {
+            if (code.getOpt(i) != Operation.loca || code.getNum(i) != induction || code.getOpt(i + 1) == Operation.load64) {
+                continue;
+            }
+            if (step != null || i + 5 >= cond
+                || code.getOpt(i + 1) != Operation.loca || code.getNum(i + 1) != induction
+                || code.getOpt(i + 2) != Operation.load64 || code.getOpt(i + 3) != Operation.push
+                || code.getOpt(i + 5) != Operation.store64) {
+                return null;
+            }
+            increment_at = i;
+            if (code.getOpt(i + 4) == Operation.add_i) {
+                step = code.getNum(i + 3);
+            }
+            else if (code.getOpt(i + 4) == Operation.sub_i) {
+                step = -code.getNum(i + 3);
+            }
+            else {
+                return null;
+            }
+        }
+        return step;
+    }
+
+    // 从 br cond 往前在同一个基本块里找 loca i; push c0; store64，中间不能再写 i
+    private Long initial(int br, long induction) {
+        for (int i = br - 1; i >= 2; i--) {
+            if (code.getOpt(i) == Operation.store64 && code.getOpt(i - 1) == Operation.push
+                && code.getOpt(i - 2) == Operation.loca && code.getNum(i - 2) == induction) {
+                return code.getNum(i - 1);
+            }
+            if (targets[i] >= 0 || code.getOpt(i) == Operation.ret || is_target[i + 1]
+                || code.getOpt(i) == Operation.loca && code.getNum(i) == induction && code.getOpt(i + 1) != Operation.load64) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // 循环变量为 value 时向回跳的跳转会不会跳
+    private static boolean taken(long value, long bound, boolean swapped, Operation set, Operation branch) {
+        long result = swapped ? Long.compare(bound, value) : Long.compare(value, bound);
+        if (set == Operation.set_lt) {
+            result = result < 0 ? 1 : 0;
+        }
+        else if (set == Operation.set_gt) {
+            result = result > 0 ? 1 : 0;
+        }
+        return branch == Operation.br_true ? result != 0 : result == 0;
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * 输出二进制之前，依次对每个函数体做优化
+ */
+public class Optimizer {
+    // 部分展开循环时循环体最多复制几遍，小于 2 时不做部分展开
+    public static int unroll_factor = 8;
+
+    // 展开以后一个循环最多多少条指令，为 0 时只去掉一次也不执行的循环
+    public static int unroll_budget = 128;
+
+    private Optimizer() {
+    }
+
+    public static void optimize(Definition def_table) {
+        // 先整理每个函数自己的代码，展开的时候用的就是整理好的被调函数
+        for (Function func : def_table.getFunctionOrder()) {
+            TailCallEliminator.optimize(func, def_table);
+            func.setFunctionBody(cleanup(func.getFunctionBody()));
+        }
+        // 参数都是常数的纯函数调用在编译时算出结果
+        PureCallEvaluator.optimize(def_table);
+        for (Function func : def_table.getFunctionOrder()) {
+            Inliner.optimize(func, def_table);
+        }
+        for (Function func : def_table.getFunctionOrder()) {
+            func.setFunctionBody(cleanup(func.getFunctionBody()));
+            // 次数是常数的小循环先展开，剩下的循环再外提不变量
+            boolean changed = LoopUnroller.optimize(func, def_table);
+            // 展开以后循环里的不变量才完整，外提以后再整理一遍
+            changed |= LoopInvariantMotion.optimize(func, def_table);
+            // 基本块里重复的表达式只算一次
+            changed |= CommonSubexpressionEliminator.optimize(func);
+            if (changed) {
+                func.setFunctionBody(cleanup(func.getFunctionBody()));
+            }
+        }
+        // 展开以后有的函数不再被调用了
+        DeadFunctionEliminator.optimize(def_table);
+    }
+
+    // 窥孔优化，再经过控制流图重新排一遍，去掉走不到的块，跳到下一块的 br 在这里去掉
+    private static InstructionBuffer cleanup(InstructionBuffer body) {
+        body = Peephole.optimize(body);
+        ControlFlowGraph cfg = ControlFlowGraph.build(body);
+        cfg.removeUnreachable();
+        return cfg.linearize();
+    }
+}
@@ -1,15 +1,13 @@
 import java.io.*;
-import java.text.Normalizer.Form;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Iterator;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 
 public class OutToBinary {
   private Function start;
   Definition def_table;
-  private List<Byte> output;
+  // 输出缓冲区，大端序，不够时翻倍扩容
+  private ByteBuffer output;
 
   //DataOutputStream out = new DataOutputStream(new FileOutputStream(new File("src/out.txt")));
 
@@ -19,19 +17,22 @@ public class OutToBinary {
   public OutToBinary(Definition def_table, Function start){
     this.start = start;
     this.def_table = def_table;
-    output = new ArrayList<>();
+    output = ByteBuffer.allocate(4096).order(ByteOrder.BIG_ENDIAN);
   }
 
-  public List<Byte> generate() throws IOException {
+  /**
+   * 生成整个 o0 模块
+   *
+   * @return 已经 flip 过的缓冲区，position 到 limit 就是完整的输出
+   */
+  public ByteBuffer generate() throws IOException {
     //magic
-    List<Byte> magic=int2bytes(4,this.magic);
-    output.addAll(magic);
+    putInt(this.magic);
     //version
-    List<Byte> version=int2bytes(4,this.version);
-    output.addAll(version);
+    putInt(this.version);
 
     //globals.count
-    output.addAll(int2bytes(4, def_table.getGlobalListCount()));
+    putInt(def_table.getGlobalListCount());
     System.out.println("globals.count: " + def_table.getGlobalListCount());
 
     System.out.println("-----------------输出global数组----------------");
@@ -39,137 +40,127 @@ public class OutToBinary {
     for(SymbolEntry g : def_table.getGlobalList()){
       System.out.println(i++ + "     -----------");
       //is_const
-      List<Byte> is_const=int2bytes(1, g.isConstant().compareTo(false));
-      output.addAll(is_const);
+      putByte(g.isConstant().compareTo(false));
       System.out.println("index: " + g.getId());
       System.out.println("is_const: " + g.isConstant().compareTo(false));
 
-      List<Byte> global_value_count;
-      List<Byte> global_value;
-
       if (g.getValue() == null) {
-        global_value_count = int2bytes(4, 8);
-        global_value = long2bytes(8,0);
+        putInt(8);
+        putLong(0);
+      }
+      else if (g.getValue() instanceof Long) {
+        // 编译时算好的初值，按虚拟机内存里的小端序写
+        putInt(8);
+        putLong(Long.reverseBytes((Long) g.getValue()));
       }
       else {
-        global_value = String2bytes(g.getValue().toString());
-        global_value_count = int2bytes(4, global_value.size());
+        String value = g.getValue().toString();
+        putInt(value.length());
+        putString(value);
       }
-
-      output.addAll(global_value_count);
-      output.addAll(global_value);
     }
 
     //functions.count
-    List<Byte> functionsCount=int2bytes(4, this.def_table.getFunctionListCount());
-    output.addAll(functionsCount);
+    putInt(this.def_table.getFunctionListCount());
     System.out.println("function count: " + this.def_table.getFunctionListCount());
 
     System.out.println("-----------------输出function数组----------------");
     generateFunction(start);
+    // 函数编号在定义时就分配好了，按编号顺序输出即可，_start 的编号是 0
     i = 1;
-    List<Function> func_list = new ArrayList<>();
-    for (String name: def_table.getFunctionList().keySet()) {
-      if(!name.equals("_start") && !this.def_table.isSTDFunction(name)){
-        System.out.println(i++ + "     -----------");
-        func_list.add(def_table.getFunctionList().get(name));
+    for(Function f: def_table.getFunctionOrder()){
+      if(f == start){
+        continue;
       }
-    }
-
-    Collections.sort(func_list);
-    for(Function f: func_list){
       System.out.println(i++ + "     -----------");
       generateFunction(f);
     }
 
-
+    output.flip();
     return output;
   }
 
+  /**
+   * 生成并直接写到 channel 里
+   */
+  public void writeTo(WritableByteChannel channel) throws IOException {
+    ByteBuffer bytes = generate();
+    while (bytes.hasRemaining()) {
+      channel.write(bytes);
+    }
+  }
+
   private void generateFunction(Function function){
     //name
-    List<Byte> name = int2bytes(4, function.getId());
-    output.addAll(name);
+    putInt(function.getId());
     System.out.println("function name: " + function.getId());
-    //out.writeBytes(name.toString());
 
     //retSlot
-    List<Byte> retSlots = int2bytes(4, function.getReturnSlot());
-    output.addAll(retSlots);
+    putInt(function.getReturnSlot());
     System.out.println("function return slot: " + function.getReturnSlot());
-    //out.writeBytes(retSlots.toString());
 
     //paramsSlots
-    List<Byte> paramsSlots=int2bytes(4, function.getParamSlot());
-    output.addAll(paramsSlots);
+    putInt(function.getParamSlot());
     System.out.println("function param slot: " + function.getParamSlot());
 
     //locSlots
-    List<Byte> locSlots=int2bytes(4, function.getLocalSlot());
-    output.addAll(locSlots);
+    putInt(function.getLocalSlot());
     System.out.println("function local slot: " + function.getLocalSlot());
 
-    List<Instruction> ins = function.getFunctionBody();
+    InstructionBuffer ins = function.getFunctionBody();
 
     //bodyCount
-    List<Byte> bodyCount=int2bytes(4, ins.size());
-    output.addAll(bodyCount);
+    putInt(ins.size());
     System.out.println("function body count: " + ins.size());
 
-    //body
-    int cc = 1;
-    for(Instruction i : ins){
+    //body，每条指令最多 9 个字节，先一次性留够空间
+    ensureRemaining(ins.size() * 9);
+    for(int k = 0; k < ins.size(); k++){
+      Operation opt = ins.getOpt(k);
       //type
-      List<Byte> type = int2bytes(1, i.getCode());
-      output.addAll(type);
-      System.out.println(cc++ + " instruction: " + i.getOpt() + " ,num: " + i.getNum());
+      output.put((byte) opt.getCode());
+      System.out.println((k + 1) + " instruction: " + opt + " ,num: " + (ins.hasNum(k) ? ins.getNum(k) : null));
 
-      if(i.getNum() != null){
-        List<Byte>  x;
-        if(i.getCode() == 1)
+      if(ins.hasNum(k)){
+        if(opt == Operation.push)
           // push是8字节，其他是4字节
-          x = long2bytes(8, i.getNum());
+          output.putLong(ins.getNum(k));
         else
-          x = int2bytes(4, (int)(long)i.getNum());
-        output.addAll(x);
+          output.putInt((int)ins.getNum(k));
       }
     }
   }
 
-  private List<Byte> Char2bytes(char value) {
-    List<Byte>  AB=new ArrayList<>();
-    AB.add((byte)(value&0xff));
-    return AB;
+  private void ensureRemaining(int length) {
+    if (output.remaining() < length) {
+      int capacity = Math.max(output.capacity() * 2, output.position() + length);
+      ByteBuffer bigger = ByteBuffer.allocate(capacity).order(ByteOrder.BIG_ENDIAN);
+      output.flip();
+      bigger.put(output);
+      output = bigger;
+    }
   }
 
-  private List<Byte> String2bytes(String valueString) {
-    List<Byte>  AB=new ArrayList<>();
-    for (int i=0;i<valueString.length();i++){
-      char ch=valueString.charAt(i);
-      AB.add((byte)(ch&0xff));
-    }
-    return AB;
+  private void putByte(int value) {
+    ensureRemaining(1);
+    output.put((byte) value);
   }
 
-  private List<Byte> long2bytes(int length, long value) {
-    ArrayList<Byte> bytes = new ArrayList<>();
-    int start = 8 * (length-1);
-    for(int i = 0 ; i < length; i++){
-      bytes.add((byte) (( value >> ( start - i * 8 )) & 0xFF ));
-    }
-    return bytes;
+  private void putInt(int value) {
+    ensureRemaining(4);
+    output.putInt(value);
   }
 
-  /*
-   * length 长度
-   * target 值
-   */
-  private ArrayList<Byte> int2bytes(int length, int target){
-    ArrayList<Byte> bytes = new ArrayList<>();
-    int start = 8 * (length-1);
-    for(int i = 0 ; i < length; i++){
-      bytes.add((byte) (( target >> ( start - i * 8 )) & 0xFF ));
+  private void putLong(long value) {
+    ensureRemaining(8);
+    output.putLong(value);
+  }
+
+  // 每个字符只取低 8 位
+  private void putString(String value) {
+    ensureRemaining(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      output.put((byte) (value.charAt(i) & 0xff));
     }
-    return bytes;
   }
 }
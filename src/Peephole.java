@@ -0,0 +1,366 @@
+/**
+ * 窥孔优化：在函数体上用一张规则表反复匹配短指令序列，替换成更短的序列
+ * 跳转先换算成绝对下标，替换完成后再重新计算相对偏移
+ * 匹配到的序列中间（除第一条以外）不能有跳转目标，否则不做替换
+ * 规则里的 null 匹配任意一条指令，由 apply 自己检查
+ */
+public class Peephole {
+
+    /**
+     * 一条规则：pattern 是要匹配的操作码序列，apply 往输出里写替换后的指令
+     * apply 返回 false 表示条件不满足，不做替换
+     */
+    private static abstract class Rule {
+        final Operation[] pattern;
+
+        Rule(Operation... pattern) {
+            this.pattern = pattern;
+        }
+
+        abstract boolean apply(Peephole p, int at);
+    }
+
+    private static final Rule[] RULES = {
+        // br 0：跳到下一条，直接删掉
+        new Rule(Operation.br) {
+            boolean apply(Peephole p, int at) {
+                return p.targets[at] == at + 1;
+            }
+        },
+        // 跳到 br 的跳转直接跳到那条 br 的目标
+        new Rule(Operation.br) {
+            boolean apply(Peephole p, int at) {
+                return p.thread(at);
+            }
+        },
+        new Rule(Operation.br_true) {
+            boolean apply(Peephole p, int at) {
+                return p.thread(at);
+            }
+        },
+        new Rule(Operation.br_false) {
+            boolean apply(Peephole p, int at) {
+                return p.thread(at);
+            }
+        },
+        // br_true 1; br X => br_false X
+        new Rule(Operation.br_true, Operation.br) {
+            boolean apply(Peephole p, int at) {
+                if (p.targets[at] != at + 2) {
+                    return false;
+                }
+                p.emitBranch(Operation.br_false, p.targets[at + 1]);
+                return true;
+            }
+        },
+        // br_false 1; br X => br_true X
+        new Rule(Operation.br_false, Operation.br) {
+            boolean apply(Peephole p, int at) {
+                if (p.targets[at] != at + 2) {
+                    return false;
+                }
+                p.emitBranch(Operation.br_true, p.targets[at + 1]);
+                return true;
+            }
+        },
+        // not; br_true X => br_false X
+        new Rule(Operation.not, Operation.br_true) {
+            boolean apply(Peephole p, int at) {
+                p.emitBranch(Operation.br_false, p.targets[at + 1]);
+                return true;
+            }
+        },
+        // not; br_false X => br_true X
+        new Rule(Operation.not, Operation.br_false) {
+            boolean apply(Peephole p, int at) {
+                p.emitBranch(Operation.br_true, p.targets[at + 1]);
+                return true;
+            }
+        },
+        // 结果本来就是 0/1 的指令后面的 not; not 没有作用
+        new Rule(Operation.not, Operation.not, Operation.not) {
+            boolean apply(Peephole p, int at) {
+                p.emit(Operation.not, 0);
+                return true;
+            }
+        },
+        new Rule(Operation.set_lt, Operation.not, Operation.not) {
+            boolean apply(Peephole p, int at) {
+                p.emit(Operation.set_lt, 0);
+                return true;
+            }
+        },
+        new Rule(Operation.set_gt, Operation.not, Operation.not) {
+            boolean apply(Peephole p, int at) {
+                p.emit(Operation.set_gt, 0);
+                return true;
+            }
+        },
+        // 条件是常数的条件跳转
+        new Rule(Operation.push, Operation.br_true) {
+            boolean apply(Peephole p, int at) {
+                if (p.nums[at] != 0) {
+                    p.emitBranch(Operation.br, p.targets[at + 1]);
+                }
+                return true;
+            }
+        },
+        new Rule(Operation.push, Operation.br_false) {
+            boolean apply(Peephole p, int at) {
+                if (p.nums[at] == 0) {
+                    p.emitBranch(Operation.br, p.targets[at + 1]);
+                }
+                return true;
+            }
+        },
+        // push 0; add_i 和 push 0; sub_i 什么也不做
+        new Rule(Operation.push, Operation.add_i) {
+            boolean apply(Peephole p, int at) {
+                return p.nums[at] == 0;
+            }
+        },
+        new Rule(Operation.push, Operation.sub_i) {
+            boolean apply(Peephole p, int at) {
+                return p.nums[at] == 0;
+            }
+        },
+        // 整数乘除的代数化简，下面的 x 指 loca/arga/globa n; load64，没有副作用
+        // x; push 0; mul_i => push 0
+        new Rule(null, Operation.load64, Operation.push, Operation.mul_i) {
+            boolean apply(Peephole p, int at) {
+                if (!StackValue.isAddress(p.ops[at]) || p.nums[at + 2] != 0) {
+                    return false;
+                }
+                p.emit(Operation.push, 0);
+                return true;
+            }
+        },
+        // x; x; sub_i => push 0
+        new Rule(null, Operation.load64, null, Operation.load64, Operation.sub_i) {
+            boolean apply(Peephole p, int at) {
+                if (!StackValue.isAddress(p.ops[at]) || p.ops[at + 2] != p.ops[at] || p.nums[at + 2] != p.nums[at]) {
+                    return false;
+                }
+                p.emit(Operation.push, 0);
+                return true;
+            }
+        },
+        // 常数在左边：push 0; x; mul_i => push 0，push 0; x; add_i => x，
+        // push 1; x; mul_i => x，push 2^k; x; mul_i => x; push k; shl
+        new Rule(Operation.push, null, Operation.load64, Operation.mul_i) {
+            boolean apply(Peephole p, int at) {
+                long c = p.nums[at];
+                if (!StackValue.isAddress(p.ops[at + 1]) || (c != 0 && shift(c) < 0)) {
+                    return false;
+                }
+                if (c == 0) {
+                    p.emit(Operation.push, 0);
+                    return true;
+                }
+                p.emit(p.ops[at + 1], p.nums[at + 1]);
+                p.emit(Operation.load64, 0);
+                if (c != 1) {
+                    p.emit(Operation.push, shift(c));
+                    p.emit(Operation.shl, 0);
+                }
+                return true;
+            }
+        },
+        new Rule(Operation.push, null, Operation.load64, Operation.add_i) {
+            boolean apply(Peephole p, int at) {
+                if (!StackValue.isAddress(p.ops[at + 1]) || p.nums[at] != 0) {
+                    return false;
+                }
+                p.emit(p.ops[at + 1], p.nums[at + 1]);
+                p.emit(Operation.load64, 0);
+                return true;
+            }
+        },
+        // push 1; mul_i 什么也不做，push 2^k; mul_i => push k; shl
+        new Rule(Operation.push, Operation.mul_i) {
+            boolean apply(Peephole p, int at) {
+                int k = shift(p.nums[at]);
+                if (k < 0) {
+                    return false;
+                }
+                if (k > 0) {
+                    p.emit(Operation.push, k);
+                    p.emit(Operation.shl, 0);
+                }
+                return true;
+            }
+        },
+        // push 1; div_i 什么也不做；有符号除法除以 2^k 对负数的舍入和 shr 不同，不改
+        new Rule(Operation.push, Operation.div_i) {
+            boolean apply(Peephole p, int at) {
+                return p.nums[at] == 1;
+            }
+        },
+    };
+
+    // 最多重复匹配的轮数，一般两三轮就不再变化
+    private static final int MAX_ROUNDS = 16;
+
+    Operation[] ops;
+    long[] nums;
+    // 跳转指令的目标（绝对下标），不是跳转的指令为 -1
+    int[] targets;
+    boolean[] isTarget;
+    int size;
+
+    Operation[] outOps;
+    long[] outNums;
+    int[] outTargets;
+    int outSize;
+
+    private Peephole(InstructionBuffer body) {
+        this.size = body.size();
+        this.ops = new Operation[size];
+        this.nums = new long[size];
+        this.targets = new int[size];
+        for (int i = 0; i < size; i++) {
+            ops[i] = body.getOpt(i);
+            nums[i] = body.getNum(i);
+            targets[i] = ControlFlowGraph.isBranch(ops[i]) ? (int) (i + 1 + nums[i]) : -1;
+        }
+    }
+
+    /**
+     * 对一个函数体做窥孔优化，返回新的函数体
+     */
+    public static InstructionBuffer optimize(InstructionBuffer body) {
+        Peephole p = new Peephole(body);
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            if (!p.rewrite()) {
+                break;
+            }
+        }
+        return p.toBuffer();
+    }
+
+    // c 是 2 的 k 次方（k >= 0）时返回 k，否则返回 -1
+    private static int shift(long c) {
+        return c > 0 && (c & (c - 1)) == 0 ? Long.numberOfTrailingZeros(c) : -1;
+    }
+
+    // 按规则表扫描一遍，返回有没有改动
+    private boolean rewrite() {
+        isTarget = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (targets[i] >= 0 && targets[i] <= size) {
+                isTarget[targets[i]] = true;
+            }
+        }
+        outOps = new Operation[size];
+        outNums = new long[size];
+        outTargets = new int[size];
+        outSize = 0;
+        // 旧下标 -> 新下标，被删掉的指令对应到它后面第一条留下来的指令
+        int[] newIndex = new int[size + 1];
+        boolean changed = false;
+        int i = 0;
+        while (i < size) {
+            int mark = outSize;
+            int length = match(i);
+            if (length > 0) {
+                // 跳到序列开头的跳转改为跳到替换后的第一条
+                newIndex[i] = mark;
+                for (int k = 1; k < length; k++) {
+                    newIndex[i + k] = -1;
+                }
+                i += length;
+                changed = true;
+            }
+            else {
+                newIndex[i] = outSize;
+                emitCopy(i);
+                i++;
+            }
+        }
+        newIndex[size] = outSize;
+        // 被替换掉的中间指令不是跳转目标，补成下一条的下标即可
+        for (int k = size - 1; k >= 0; k--) {
+            if (newIndex[k] < 0) {
+                newIndex[k] = newIndex[k + 1];
+            }
+        }
+        for (int k = 0; k < outSize; k++) {
+            if (outTargets[k] >= 0) {
+                outTargets[k] = newIndex[outTargets[k]];
+            }
+        }
+        ops = outOps;
+        nums = outNums;
+        targets = outTargets;
+        size = outSize;
+        return changed;
+    }
+
+    // 在 at 处尝试每一条规则，成功时返回匹配的长度
+    private int match(int at) {
+        for (Rule rule : RULES) {
+            int length = rule.pattern.length;
+            if (at + length > size) {
+                continue;
+            }
+            boolean ok = true;
+            for (int k = 0; k < length && ok; k++) {
+                ok = (rule.pattern[k] == null || ops[at + k] == rule.pattern[k]) && (k == 0 || !isTarget[at + k]);
+            }
+            if (!ok) {
+                continue;
+            }
+            int mark = outSize;
+            if (rule.apply(this, at)) {
+                return length;
+            }
+            outSize = mark;
+        }
+        return 0;
+    }
+
+    // 跳转的目标是一条 br 时直接跳到它的目标
+    private boolean thread(int at) {
+        int target = targets[at];
+        if (target < 0 || target >= size || ops[target] != Operation.br) {
+            return false;
+        }
+        int next = targets[target];
+        if (next == target) {
+            return false;
+        }
+        emitBranch(ops[at], next);
+        return true;
+    }
+
+    private void emit(Operation opt, long num) {
+        outOps[outSize] = opt;
+        outNums[outSize] = num;
+        outTargets[outSize] = -1;
+        outSize++;
+    }
+
+    // target 是旧下标，扫描结束后统一换算
+    private void emitBranch(Operation opt, int target) {
+        outOps[outSize] = opt;
+        outNums[outSize] = 0;
+        outTargets[outSize] = target;
+        outSize++;
+    }
+
+    private void emitCopy(int i) {
+        outOps[outSize] = ops[i];
+        outNums[outSize] = nums[i];
+        outTargets[outSize] = targets[i];
+        outSize++;
+    }
+
+    private InstructionBuffer toBuffer() {
+        InstructionBuffer buf = new InstructionBuffer(size);
+        for (int i = 0; i < size; i++) {
+            long num = targets[i] >= 0 ? targets[i] - (i + 1) : nums[i];
+            buf.add(ops[i], num);
+        }
+        return buf;
+    }
+}
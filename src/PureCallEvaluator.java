@@ -0,0 +1,464 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 编译时计算参数都是常数的纯函数调用
+ * 纯函数：不写全局变量，不做输入输出，只读编译时算好值的 const 全局变量，只调用纯函数
+ * 调用处 stackalloc 1; push a1; ...; push an; call f 在编译时解释执行 f，换成 push 结果
+ * 解释执行有步数限制，超过步数、除以 0 或者栈用得太多时不替换，留到运行时
+ */
+public class PureCallEvaluator {
+    // 一次调用最多解释执行多少条指令
+    private static final int MAX_FUEL = 100000;
+
+    // 解释执行时调用的最大深度
+    private static final int MAX_DEPTH = 256;
+
+    // 解释执行用的栈和局部变量空间的大小（slot）
+    private static final int STACK_SIZE = 1 << 16;
+
+    Definition def_table;
+    List<Function> functions;
+    boolean[] pure;
+    // 算过的调用，算不出来的是 null
+    Map<String, Long> results = new HashMap<>();
+
+    // 解释执行的状态
+    long[] stack = new long[STACK_SIZE];
+    int sp;
+    long[] memory = new long[STACK_SIZE];
+    int top;
+    int fuel;
+    int depth;
+
+    private PureCallEvaluator(Definition def_table) {
+        this.def_table = def_table;
+        this.functions = def_table.getFunctionOrder();
+        this.pure = findPureFunctions();
+    }
+
+    /**
+     * 替换所有函数里能在编译时算出结果的调用
+     */
+    public static void optimize(Definition def_table) {
+        PureCallEvaluator evaluator = new PureCallEvaluator(def_table);
+        for (Function func : def_table.getFunctionOrder()) {
+            // 替换以后外层调用的参数可能也变成了常数
+            while (evaluator.rewrite(func)) {
+            }
+        }
+    }
+
+    // 先假设除了 _start 都是纯函数，不满足条件的去掉，直到不再变化
+    private boolean[] findPureFunctions() {
+        boolean[] result = new boolean[functions.size()];
+        for (int i = 1; i < functions.size(); i++) {
+            result[i] = functions.get(i).getFunctionBody() != null;
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < functions.size(); i++) {
+                if (result[i] && !isPure(functions.get(i).getFunctionBody(), result)) {
+                    result[i] = false;
+                    changed = true;
+                }
+            }
+        }
+        for (int i = 1; i < functions.size(); i++) {
+            if (result[i]) {
+                System.out.println("pure function: " + functions.get(i).getName());
+            }
+        }
+        return result;
+    }
+
+    private boolean isPure(InstructionBuffer body, boolean[] pure_functions) {
+        for (int i = 0; i < body.size(); i++) {
+            Operation opt = body.getOpt(i);
+            switch (opt) {
+                case globa:
+                    // 只能读 const 全局变量
+                    if (i + 1 >= body.size() || body.getOpt(i + 1) != Operation.load64 || constant((int) body.getNum(i)) == null) {
+                        return false;
+                    }
+                    break;
+                case call: {
+                    int callee = (int) body.getNum(i);
+                    if (callee <= 0 || callee >= functions.size() || !pure_functions[callee]) {
+                        return false;
+                    }
+                    break;
+                }
+                default:
+                    if (!isPureOperation(opt)) {
+                        return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    // 编译时算好值的 const 全局变量的值
+    private Long constant(int id) {
+        if (id < 0 || id >= def_table.getGlobalListCount()) {
+            return null;
+        }
+        SymbolEntry g = def_table.getGlobalList().get(id);
+        if (g.isConstant() && g.getValue() instanceof Long) {
+            return (Long) g.getValue();
+        }
+        return null;
+    }
+
+    // 把 func 里参数都是常数的纯函数调用换成 push 结果，返回有没有改动
+    private boolean rewrite(Function func) {
+        InstructionBuffer code = func.getFunctionBody();
+        int size = code.size();
+        int[] targets = ControlFlowGraph.branchTargets(code);
+        boolean[] is_target = new boolean[size + 1];
+        for (int i = 0; i < size; i++) {
+            if (targets[i] >= 0) {
+                is_target[targets[i]] = true;
+            }
+        }
+        // 每个被替换的调用的开始位置 -> 结果
+        Long[] value_at = new Long[size];
+        int[] end_at = new int[size];
+        for (int i = 0; i < size; i++) {
+            if (code.getOpt(i) != Operation.call) {
+                continue;
+            }
+            int callee = (int) code.getNum(i);
+            if (callee <= 0 || callee >= functions.size() || !pure[callee] || functions.get(callee).getReturnSlot() != 1) {
+                continue;
+            }
+            int params = functions.get(callee).getParamSlot();
+            int start = i - params - 1;
+            if (start < 0 || code.getOpt(start) != Operation.stackalloc || code.getNum(start) != 1 || value_at[start] != null) {
+                continue;
+            }
+            long[] args = new long[params];
+            boolean constant = true;
+            for (int k = 0; k < params && constant; k++) {
+                constant = code.getOpt(start + 1 + k) == Operation.push && !is_target[start + 1 + k];
+                args[k] = code.getNum(start + 1 + k);
+            }
+            if (!constant || is_target[i]) {
+                continue;
+            }
+            Long result = evaluate(callee, args);
+            if (result != null) {
+                value_at[start] = result;
+                end_at[start] = i;
+            }
+        }
+        List<ControlFlowGraph.Replacement> replacements = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            if (value_at[i] != null) {
+                ControlFlowGraph.Replacement r = new ControlFlowGraph.Replacement(i, end_at[i] + 1);
+                r.getCode().add(Operation.push, value_at[i]);
+                replacements.add(r);
+            }
+        }
+        if (replacements.isEmpty()) {
+            return false;
+        }
+        func.setFunctionBody(ControlFlowGraph.replace(code, replacements));
+        return true;
+    }
+
+    // 解释执行 functions[callee](args)，算不出来时返回 null
+    private Long evaluate(int callee, long[] args) {
+        String key = callee + ":" + Arrays.toString(args);
+        if (results.containsKey(key)) {
+            return results.get(key);
+        }
+        sp = 0;
+        top = 0;
+        depth = 0;
+        fuel = MAX_FUEL;
+        stack[sp++] = 0;
+        for (long arg : args) {
+            stack[sp++] = arg;
+        }
+        Long result = execute(callee) && sp == 1 ? stack[0] : null;
+        results.put(key, result);
+        if (result != null) {
+            System.out.println("evaluate " + functions.get(callee).getName() + Arrays.toString(args) + " = " + result);
+        }
+        return result;
+    }
+
+    // 调用时栈顶是返回值的 slot 和参数，返回时只留下返回值的 slot
+    private boolean execute(int index) {
+        Function func = functions.get(index);
+        InstructionBuffer body = func.getFunctionBody();
+        int ret_slot = func.getReturnSlot();
+        int arg_count = ret_slot + func.getParamSlot();
+        int args = top;
+        int locals = args + arg_count;
+        if (++depth > MAX_DEPTH || sp < arg_count || locals + func.getLocalSlot() > STACK_SIZE) {
+            return false;
+        }
+        sp -= arg_count;
+        // 返回时栈回到这里，函数里没弹出的值都丢掉
+        int base = sp;
+        System.arraycopy(stack, sp, memory, args, arg_count);
+        Arrays.fill(memory, locals, locals + func.getLocalSlot(), 0);
+        top = locals + func.getLocalSlot();
+        // 地址：局部变量和参数是 memory 的下标，const 全局变量是 -(id + 1)
+        int pc = 0;
+        while (pc < body.size()) {
+            if (--fuel < 0 || sp + 2 > STACK_SIZE) {
+                return false;
+            }
+            Operation opt = body.getOpt(pc);
+            long num = body.getNum(pc);
+            pc++;
+            long a;
+            long b;
+            switch (opt) {
+                case nop:
+                    break;
+                case push:
+                    stack[sp++] = num;
+                    break;
+                case pop:
+                    sp--;
+                    break;
+                case popn:
+                    sp -= (int) num;
+                    break;
+                case dup:
+                    stack[sp] = stack[sp - 1];
+                    sp++;
+                    break;
+                case loca:
+                    stack[sp++] = locals + num;
+                    break;
+                case arga:
+                    stack[sp++] = args + num;
+                    break;
+                case globa:
+                    stack[sp++] = -(num + 1);
+                    break;
+                case stackalloc:
+                    if (sp + num > STACK_SIZE) {
+                        return false;
+                    }
+                    for (int k = 0; k < num; k++) {
+                        stack[sp++] = 0;
+                    }
+                    break;
+                case load64:
+                    a = stack[sp - 1];
+                    if (a < 0) {
+                        Long value = constant((int) (-a - 1));
+                        if (value == null) {
+                            return false;
+                        }
+                        stack[sp - 1] = value;
+                    }
+                    else if (a < top) {
+                        stack[sp - 1] = memory[(int) a];
+                    }
+                    else {
+                        return false;
+                    }
+                    break;
+                case store64:
+                    b = stack[--sp];
+                    a = stack[--sp];
+                    if (a < 0 || a >= top) {
+                        return false;
+                    }
+                    memory[(int) a] = b;
+                    break;
+                case add_i:
+                    b = stack[--sp];
+                    stack[sp - 1] += b;
+                    break;
+                case sub_i:
+                    b = stack[--sp];
+                    stack[sp - 1] -= b;
+                    break;
+                case mul_i:
+                    b = stack[--sp];
+                    stack[sp - 1] *= b;
+                    break;
+                case div_i:
+                    b = stack[--sp];
+                    if (b == 0 || (b == -1 && stack[sp - 1] == Long.MIN_VALUE)) {
+                        return false;
+                    }
+                    stack[sp - 1] /= b;
+                    break;
+                case add_f:
+                case sub_f:
+                case mul_f:
+                case div_f: {
+                    double y = Double.longBitsToDouble(stack[--sp]);
+                    double x = Double.longBitsToDouble(stack[sp - 1]);
+                    double r = opt == Operation.add_f ? x + y : opt == Operation.sub_f ? x - y : opt == Operation.mul_f ? x * y : x / y;
+                    stack[sp - 1] = Double.doubleToRawLongBits(r);
+                    break;
+                }
+                case shl:
+                    b = stack[--sp];
+                    if (b < 0 || b > 63) {
+                        return false;
+                    }
+                    stack[sp - 1] <<= b;
+                    break;
+                case shr:
+                    b = stack[--sp];
+                    if (b < 0 || b > 63) {
+                        return false;
+                    }
+                    stack[sp - 1] >>= b;
+                    break;
+                case shrl:
+                    b = stack[--sp];
+                    if (b < 0 || b > 63) {
+                        return false;
+                    }
+                    stack[sp - 1] >>>= b;
+                    break;
+                case and:
+                    b = stack[--sp];
+                    stack[sp - 1] &= b;
+                    break;
+                case or:
+                    b = stack[--sp];
+                    stack[sp - 1] |= b;
+                    break;
+                case xor:
+                    b = stack[--sp];
+                    stack[sp - 1] ^= b;
+                    break;
+                case cmp_i:
+                    b = stack[--sp];
+                    stack[sp - 1] = Long.compare(stack[sp - 1], b);
+                    break;
+                case cmp_f: {
+                    double y = Double.longBitsToDouble(stack[--sp]);
+                    double x = Double.longBitsToDouble(stack[sp - 1]);
+                    if (Double.isNaN(x) || Double.isNaN(y)) {
+                        return false;
+                    }
+                    stack[sp - 1] = x < y ? -1 : x > y ? 1 : 0;
+                    break;
+                }
+                case not:
+                    stack[sp - 1] = stack[sp - 1] == 0 ? 1 : 0;
+                    break;
+                case neg_i:
+                    stack[sp - 1] = -stack[sp - 1];
+                    break;
+                case neg_f:
+                    stack[sp - 1] = Double.doubleToRawLongBits(-Double.longBitsToDouble(stack[sp - 1]));
+                    break;
+                case itof:
+                    stack[sp - 1] = Double.doubleToRawLongBits((double) stack[sp - 1]);
+                    break;
+                case ftoi: {
+                    double x = Double.longBitsToDouble(stack[sp - 1]);
+                    // 运行时对溢出的处理不确定，留给运行时
+                    if (Double.isNaN(x) || Double.isInfinite(x) || Math.abs(x) >= 0x1p63) {
+                        return false;
+                    }
+                    stack[sp - 1] = (long) x;
+                    break;
+                }
+                case set_lt:
+                    stack[sp - 1] = stack[sp - 1] < 0 ? 1 : 0;
+                    break;
+                case set_gt:
+                    stack[sp - 1] = stack[sp - 1] > 0 ? 1 : 0;
+                    break;
+                case br:
+                    pc += (int) num;
+                    break;
+                case br_true:
+                    if (stack[--sp] != 0) {
+                        pc += (int) num;
+                    }
+                    break;
+                case br_false:
+                    if (stack[--sp] == 0) {
+                        pc += (int) num;
+                    }
+                    break;
+                case call:
+                    if (!execute((int) num)) {
+                        return false;
+                    }
+                    break;
+                case ret:
+                    sp = base;
+                    System.arraycopy(memory, args, stack, sp, ret_slot);
+                    sp += ret_slot;
+                    top = args;
+                    depth--;
+                    return true;
+                default:
+                    return false;
+            }
+            if (sp < 0) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    // 解释器支持、没有副作用的指令
+    private static boolean isPureOperation(Operation opt) {
+        switch (opt) {
+            case nop:
+            case push:
+            case pop:
+            case popn:
+            case dup:
+            case loca:
+            case arga:
+            case load64:
+            case store64:
+            case stackalloc:
+            case add_i:
+            case sub_i:
+            case mul_i:
+            case div_i:
+            case add_f:
+            case sub_f:
+            case mul_f:
+            case div_f:
+            case shl:
+            case shr:
+            case shrl:
+            case and:
+            case or:
+            case xor:
+            case cmp_i:
+            case cmp_f:
+            case not:
+            case neg_i:
+            case neg_f:
+            case itof:
+            case ftoi:
+            case set_lt:
+            case set_gt:
+            case br:
+            case br_true:
+            case br_false:
+            case ret:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
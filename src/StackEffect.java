@@ -0,0 +1,178 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * 每条指令执行后栈深度的变化（以 slot 计）
+ * call / callname 弹出被调函数的参数，返回值的 slot 由调用前的 stackalloc 分配
+ */
+public class StackEffect {
+    // 不知道栈深度怎么变化的指令（跳转、ret 等）
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private StackEffect() {
+    }
+
+    public static int of(Operation opt, long num, Definition def_table) {
+        switch (opt) {
+            case nop:
+            case load8:
+            case load16:
+            case load32:
+            case load64:
+            case not:
+            case neg_i:
+            case neg_f:
+            case itof:
+            case ftoi:
+            case set_lt:
+            case set_gt:
+            case println:
+                return 0;
+            case push:
+            case dup:
+            case loca:
+            case arga:
+            case globa:
+            case scan_i:
+            case scan_c:
+            case scan_f:
+                return 1;
+            case pop:
+            case add_i:
+            case sub_i:
+            case mul_i:
+            case div_i:
+            case add_f:
+            case sub_f:
+            case mul_f:
+            case div_f:
+            case div_u:
+            case shl:
+            case shr:
+            case shrl:
+            case and:
+            case or:
+            case xor:
+            case cmp_i:
+            case cmp_u:
+            case cmp_f:
+            case print_i:
+            case print_c:
+            case print_f:
+            case print_s:
+                return -1;
+            case store8:
+            case store16:
+            case store32:
+            case store64:
+                return -2;
+            case stackalloc:
+                return (int) num;
+            case popn:
+                return -(int) num;
+            case call: {
+                if (num < 0 || num >= def_table.getFunctionOrder().size()) {
+                    return UNKNOWN;
+                }
+                return -def_table.getFunctionOrder().get((int) num).getParamSlot();
+            }
+            case callname: {
+                Function func = def_table.getFunctionByGlobalId((int) num);
+                if (func == null) {
+                    return UNKNOWN;
+                }
+                return -func.getParamSlot();
+            }
+            default:
+                return UNKNOWN;
+        }
+    }
+
+    /**
+     * 按栈深度把 body 的 [from, to) 切成每个参数的区间
+     * 第 k 个参数从栈深度最后一次等于 k 的位置开始
+     *
+     * @return bounds[k] 是第 k 个参数的开始位置，bounds[param_slot] == to；切不开时返回 null
+     */
+    public static int[] splitArguments(InstructionBuffer body, int from, int to, int param_slot, Definition def_table) {
+        int[] bounds = new int[param_slot + 1];
+        int depth = 0;
+        for (int k = 0; k <= param_slot; k++) {
+            bounds[k] = -1;
+        }
+        for (int i = from; i < to; i++) {
+            if (depth <= param_slot) {
+                bounds[depth] = i;
+            }
+            int effect = of(body.getOpt(i), body.getNum(i), def_table);
+            if (effect == UNKNOWN) {
+                return null;
+            }
+            depth += effect;
+            if (depth < 0) {
+                return null;
+            }
+        }
+        if (depth != param_slot) {
+            return null;
+        }
+        bounds[param_slot] = to;
+        for (int k = 0; k < param_slot; k++) {
+            if (bounds[k] < 0 || bounds[k] >= bounds[k + 1]) {
+                return null;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * 函数体里每条指令执行前的栈深度（相对进入函数时），沿着跳转传播，走不到的指令为 -1
+     * 有不知道栈深度变化的指令，或者两条路径到同一处的深度不同时返回 null
+     */
+    public static int[] depths(InstructionBuffer body, Definition def_table) {
+        int size = body.size();
+        int[] depth = new int[size + 1];
+        Arrays.fill(depth, -1);
+        Deque<Integer> work = new ArrayDeque<>();
+        depth[0] = 0;
+        work.push(0);
+        while (!work.isEmpty()) {
+            int i = work.pop();
+            if (i == size || body.getOpt(i) == Operation.ret) {
+                continue;
+            }
+            Operation opt = body.getOpt(i);
+            int d = depth[i];
+            boolean ok;
+            if (opt == Operation.br) {
+                ok = flow(depth, work, (int) (i + 1 + body.getNum(i)), d);
+            }
+            else if (opt == Operation.br_true || opt == Operation.br_false) {
+                // 条件跳转弹出条件
+                ok = flow(depth, work, (int) (i + 1 + body.getNum(i)), d - 1) && flow(depth, work, i + 1, d - 1);
+            }
+            else {
+                int effect = of(opt, body.getNum(i), def_table);
+                ok = effect != UNKNOWN && flow(depth, work, i + 1, d + effect);
+            }
+            if (!ok) {
+                return null;
+            }
+        }
+        return depth;
+    }
+
+    // 以深度 d 走到 at，和之前走到时的深度不一致就失败
+    private static boolean flow(int[] depth, Deque<Integer> work, int at, int d) {
+        if (at < 0 || at >= depth.length || d < 0) {
+            return false;
+        }
+        if (depth[at] < 0) {
+            depth[at] = d;
+            work.push(at);
+            return true;
+        }
+        return depth[at] == d;
+    }
+}
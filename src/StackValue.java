@@ -0,0 +1,154 @@
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 按指令模拟操作数栈时，栈上的一个值：由 [start, end] 这段指令算出来
+ * 循环不变量外提和公共子表达式消除都用它判断一段指令是不是可以单独拿出来算的表达式
+ */
+public class StackValue {
+    int start;
+    int end;
+    // 只由常数、变量读取和运算组成，没有副作用
+    boolean pure;
+    // 是变量地址（loca/arga/globa）时是哪个变量，否则为 -1
+    long variable = -1;
+    // 是不是 push 的常数
+    boolean constant;
+    long num;
+    // 包含几次运算
+    int ops;
+    // 可能在运行时出错：除数不是安全常数的 div_i
+    boolean trapping;
+    // 读了哪些变量
+    Set<Long> reads = new HashSet<>();
+
+    StackValue(int start, int end, boolean pure) {
+        this.start = start;
+        this.end = end;
+        this.pure = pure;
+    }
+
+    /**
+     * 模拟 code 的第 at 条指令：是常数、变量地址、读取或者运算时，弹出操作数，把结果压栈并返回
+     * 其他指令返回 null，栈不变，由调用者处理
+     */
+    public static StackValue step(List<StackValue> stack, InstructionBuffer code, int at) {
+        Operation opt = code.getOpt(at);
+        long num = code.getNum(at);
+        StackValue v;
+        switch (opt) {
+            case push:
+                v = new StackValue(at, at, true);
+                v.constant = true;
+                v.num = num;
+                break;
+            case loca:
+            case arga:
+            case globa:
+                v = new StackValue(at, at, false);
+                v.variable = variable(opt, num);
+                break;
+            case load64: {
+                StackValue a = pop(stack, at);
+                v = new StackValue(a.start, at, a.variable >= 0);
+                if (a.variable >= 0) {
+                    v.reads.add(a.variable);
+                }
+                break;
+            }
+            case add_i:
+            case sub_i:
+            case mul_i:
+            case div_i:
+            case add_f:
+            case sub_f:
+            case mul_f:
+            case div_f:
+            case cmp_i:
+            case cmp_f:
+            case shl:
+            case shr:
+            case shrl:
+            case and:
+            case or:
+            case xor: {
+                StackValue b = pop(stack, at);
+                StackValue a = pop(stack, at);
+                v = new StackValue(a.start, at, a.pure && b.pure);
+                v.ops = a.ops + b.ops + 1;
+                v.trapping = a.trapping || b.trapping
+                    || (opt == Operation.div_i && !(b.constant && b.num != 0 && b.num != -1));
+                v.reads.addAll(a.reads);
+                v.reads.addAll(b.reads);
+                break;
+            }
+            case not:
+            case neg_i:
+            case neg_f:
+            case itof:
+            case ftoi:
+            case set_lt:
+            case set_gt: {
+                StackValue a = pop(stack, at);
+                v = new StackValue(a.start, at, a.pure);
+                v.ops = a.ops + 1;
+                v.trapping = a.trapping;
+                v.reads.addAll(a.reads);
+                break;
+            }
+            default:
+                return null;
+        }
+        stack.add(v);
+        return v;
+    }
+
+    /**
+     * 栈空了说明值来自跟踪范围以外，当作不知道怎么算出来的值
+     */
+    public static StackValue pop(List<StackValue> stack, int at) {
+        if (stack.isEmpty()) {
+            return new StackValue(at, at, false);
+        }
+        return stack.remove(stack.size() - 1);
+    }
+
+    /**
+     * 区分局部变量、参数和全局变量的编号
+     */
+    public static long variable(Operation opt, long num) {
+        return ((long) opt.ordinal() << 32) | num;
+    }
+
+    public static boolean isGlobal(long variable) {
+        return (variable >>> 32) == Operation.globa.ordinal();
+    }
+
+    public static boolean isAddress(Operation opt) {
+        return opt == Operation.loca || opt == Operation.arga || opt == Operation.globa;
+    }
+
+    /**
+     * [from, to] 这段指令的内容，相同的表达式得到相同的 key
+     */
+    public static String key(InstructionBuffer code, int from, int to) {
+        StringBuilder sb = new StringBuilder();
+        for (int k = from; k <= to; k++) {
+            sb.append(code.getOpt(k).ordinal()).append(':').append(code.getNum(k)).append(';');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 读的变量里有没有全局变量
+     */
+    public boolean readsGlobals() {
+        for (long r : reads) {
+            if (isGlobal(r)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,52 +1,66 @@
-import java.util.ArrayList;
-import java.util.Optional;
-import java.util.Scanner;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 /**
  * 这是一个从 C++ 版本抄过来的字符迭代器
+ * 整个源文件只映射一次，指针是一个基本类型的偏移
  */
 public class StringIter {
-    // 以行为基础的缓冲区
-    ArrayList<String> linesBuffer = new ArrayList<>();
+    // 整个源文件的缓冲区（只读内存映射），一个字节就是一个字符
+    ByteBuffer buffer;
 
-    Scanner scanner;
-    // 指向下一个要读取的字符
-    Pos ptrNext = new Pos(0, 0);
+    int length;
 
-    Pos ptr = new Pos(0, 0);
+    // 指向下一个要读取的字符的偏移
+    int ptr = 0;
 
-    boolean initialized = false;
+    // 每一行第一个字符的偏移，第一次需要 Pos 的时候才建立
+    int[] lineStarts = null;
 
-    Optional<Character> peeked = Optional.empty();
+    int lineCount = 0;
 
-    public StringIter(Scanner scanner) {
-        this.scanner = scanner;
+    // 上一次查到的行号，token 基本是顺序生成的，先猜这一行
+    int lastRow = 0;
+
+    public StringIter(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        this.length = this.buffer.limit();
+    }
+
+    public StringIter(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.length = buffer.limit();
     }
 
-    // 从这里开始其实是一个基于行号的缓冲区的实现
-    // 为了简单起见，我们没有单独拿出一个类实现
     // 核心思想和 C 的文件输入输出类似，就是一个 buffer 加一个指针，有三个细节
     // 1.缓冲区包括 \n
     // 2.指针始终指向下一个要读取的 char
     // 3.行号和列号从 0 开始
 
-    // 一次读入全部内容，并且替换所有换行为 \n
-    // 这样其实是不合理的，这里只是简单起见这么实现
+    // 文件在构造时已经整个映射进来了，这里保留给 Tokenizer 调用
     public void readAll() {
-        if (initialized) {
-            return;
-        }
-        while (scanner.hasNext()) {
-            linesBuffer.add(scanner.nextLine() + '\n');
-        }
-        // todo:check read \n?
-        initialized = true;
+    }
+
+    /**
+     * 把源文件原样写到 out 里，不再单独读一遍文件
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Channels.newChannel(out).write(this.buffer.duplicate().position(0));
+        out.flush();
     }
 
     // 一个简单的总结
     // | 0 | 1 | 2 | 3 | 4 | 5 | 6 | 7 | 8 | 9 | 偏移
     // | = | = | = | = | = | = | = | = | = | = |
-    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（缓冲区第0行）
-    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （缓冲区第1行）
+    // | h | a | 1 | 9 | 2 | 6 | 0 | 8 | 1 | \n |（第0行）
+    // | 7 | 1 | 1 | 4 | 5 | 1 | 4 | （第1行）
     // 这里假设指针指向第一行的 \n，那么有
     // nextPos() = (1, 0)
     // currentPos() = (0, 9)
@@ -57,84 +71,102 @@ public class StringIter {
      * 获取下一个字符的位置
      */
     public Pos nextPos() {
-        if (ptr.row >= linesBuffer.size()) {
+        if (isEOF()) {
             throw new Error("advance after EOF");
         }
-        if (ptr.col == linesBuffer.get(ptr.row).length() - 1) {
-            return new Pos(ptr.row + 1, 0);
-        }
-        return new Pos(ptr.row, ptr.col + 1);
+        return posAt(ptr + 1);
     }
 
     /**
      * 获取当前字符的位置
      */
     public Pos currentPos() {
-        return ptr;
+        return posAt(ptr);
     }
 
     /**
      * 获取上一个字符的位置
      */
     public Pos previousPos() {
-        if (ptr.row == 0 && ptr.col == 0) {
+        if (ptr == 0) {
             throw new Error("previous position from beginning");
         }
-        if (ptr.col == 0) {
-            return new Pos(ptr.row - 1, linesBuffer.get(ptr.row - 1).length() - 1);
-        }
-        return new Pos(ptr.row, ptr.col - 1);
+        return posAt(ptr - 1);
     }
 
     /**
-     * 将指针指向下一个字符，并返回当前字符
-     * 这里没有改变ptrNext
+     * 获取当前字符的偏移，不会新建 Pos
      */
-    public char nextChar() {
-        if (this.peeked.isPresent()) {
-            char ch = this.peeked.get();
-            this.peeked = Optional.empty();
-            this.ptr = ptrNext;
-            return ch;
-        } else {
-            char ch = this.getNextChar();
-            this.ptr = ptrNext;
-            return ch;
+    public int currentOffset() {
+        return ptr;
+    }
+
+    /**
+     * 把偏移换算成行列号，行表第一次用到时才建立
+     */
+    public Pos posAt(int offset) {
+        if (lineStarts == null) {
+            buildLineTable();
+        }
+        int row = lastRow;
+        if (row + 1 < lineCount && lineStarts[row + 1] <= offset) {
+            row++;
+        }
+        if (lineStarts[row] > offset || (row + 1 < lineCount && lineStarts[row + 1] <= offset)) {
+            row = Arrays.binarySearch(lineStarts, 0, lineCount, offset);
+            if (row < 0) {
+                row = -row - 2;
+            }
+        }
+        lastRow = row;
+        return new Pos(row, offset - lineStarts[row]);
+    }
+
+    private void buildLineTable() {
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(i) == '\n') {
+                if (count == starts.length) {
+                    starts = Arrays.copyOf(starts, count * 2);
+                }
+                starts[count++] = i + 1;
+            }
         }
+        this.lineStarts = starts;
+        this.lineCount = count;
     }
 
     /**
-     * 改变了ptrNext
+     * 将指针指向下一个字符，并返回当前字符
      */
-    private char getNextChar() {
+    public char nextChar() {
         if (isEOF()) {
             return 0;
         }
-        char result = linesBuffer.get(ptrNext.row).charAt(ptrNext.col);
-        ptrNext = nextPos();
-        return result;
+        return (char) (buffer.get(ptr++) & 0xff);
     }
 
     /**
      * 查看下一个字符，但不移动指针
      */
     public char peekChar() {
-        if (peeked.isPresent()) {
-            return peeked.get();
-        } else {
-            char ch = getNextChar();
-            this.peeked = Optional.of(ch);
-            return ch;
+        if (isEOF()) {
+            return 0;
         }
+        return (char) (buffer.get(ptr) & 0xff);
     }
 
-    public Boolean isEOF() {
-        return ptr.row >= linesBuffer.size();
+    public boolean isEOF() {
+        return ptr >= length;
     }
 
     // Note: Is it evil to unread a buffer?
     public void unreadLast() {
-        ptr = previousPos();
+        if (ptr == 0) {
+            throw new Error("previous position from beginning");
+        }
+        ptr--;
     }
 
 }
@@ -12,6 +12,8 @@ public class SymbolEntry {
     Object value;
     int level;
     int id;
+    // 被这个符号遮住的外层同名符号
+    SymbolEntry shadowed;
 
     public SymbolEntry(int id, SymbolType type, String name, TokenType tt, boolean is_initialized, boolean is_const, Object value, int level) {
         this.id = id;   // 为全局变量的id，函数在全局变量中对应的id，局部变量在函数表中对应的id，参数在函数表中对应的id，根据ST不同
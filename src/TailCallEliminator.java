@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 自递归尾调用消除
+ * 有返回值：arga 0; stackalloc 1; 参数...; call 自己; store64; ret
+ * 没有返回值：stackalloc 0; 参数...; call 自己; ret
+ * 改写成把参数写回 arga，再 br 到函数开头，不再新建栈帧
+ */
+public class TailCallEliminator {
+    Function function;
+    Definition def_table;
+    // 参数需要先存到临时局部变量时用的 slot，同一个函数里的尾调用共用
+    List<Integer> temps = new ArrayList<>();
+
+    private TailCallEliminator(Function function, Definition def_table) {
+        this.function = function;
+        this.def_table = def_table;
+    }
+
+    /**
+     * 对一个函数做尾调用消除，需要时会增加函数的 local slot
+     */
+    public static void optimize(Function function, Definition def_table) {
+        if (function.getIndex() < 0 || function.getParams() == null) {
+            return;
+        }
+        TailCallEliminator eliminator = new TailCallEliminator(function, def_table);
+        ControlFlowGraph cfg = ControlFlowGraph.build(function.getFunctionBody());
+        boolean changed = false;
+        for (BasicBlock block : cfg.getBlocks()) {
+            changed |= eliminator.rewrite(block, cfg.getEntry());
+        }
+        if (changed) {
+            function.setFunctionBody(cfg.linearize());
+        }
+    }
+
+    // 块的结尾是尾调用时改写这个块
+    private boolean rewrite(BasicBlock block, BasicBlock entry) {
+        InstructionBuffer body = block.getBody();
+        int n = body.size();
+        int ret_slot = function.getReturnSlot();
+        // 尾调用 call 之后还有几条指令
+        int tail = ret_slot == 1 ? 2 : 1;
+        // 调用前面还有几条指令
+        int head = ret_slot == 1 ? 2 : 1;
+        int call = n - tail - 1;
+        if (call < head || body.lastOpt() != Operation.ret || block.getBranch() != null) {
+            return false;
+        }
+        if (body.getOpt(call) != Operation.call || body.getNum(call) != function.getIndex()) {
+            return false;
+        }
+        if (ret_slot == 1 && body.getOpt(n - 2) != Operation.store64) {
+            return false;
+        }
+        // 从后往前找和这个 call 配对的 stackalloc，参数区间的栈深度最后正好是参数个数
+        int param_slot = function.getParamSlot();
+        for (int start = call - 1; start >= head - 1; start--) {
+            if (body.getOpt(start) != Operation.stackalloc || body.getNum(start) != ret_slot) {
+                continue;
+            }
+            if (ret_slot == 1 && (body.getOpt(start - 1) != Operation.arga || body.getNum(start - 1) != 0)) {
+                continue;
+            }
+            int[] bounds = StackEffect.splitArguments(body, start + 1, call, param_slot, def_table);
+            if (bounds == null) {
+                continue;
+            }
+            replace(block, entry, ret_slot == 1 ? start - 1 : start, bounds);
+            return true;
+        }
+        return false;
+    }
+
+    private void replace(BasicBlock block, BasicBlock entry, int start, int[] bounds) {
+        InstructionBuffer body = block.getBody();
+        int ret_slot = function.getReturnSlot();
+        int param_slot = function.getParamSlot();
+        InstructionBuffer code = new InstructionBuffer(body.size() + 4 * param_slot);
+        for (int i = 0; i < start; i++) {
+            code.add(body.getOpt(i), body.getNum(i));
+        }
+        // 原样传回自己的参数不用写
+        List<Integer> remaining = new ArrayList<>();
+        for (int k = 0; k < param_slot; k++) {
+            if (!isParamLoad(body, bounds[k], bounds[k + 1], k + ret_slot)) {
+                remaining.add(k);
+            }
+        }
+        boolean pure = true;
+        for (int k : remaining) {
+            pure &= isPure(body, bounds[k], bounds[k + 1]);
+        }
+        // 参数 k 的新值写回去以后，还没计算的参数不能再读 k 原来的值，否则先放到临时变量里
+        // 参数都没有副作用时可以调整计算顺序，尽量不用临时变量
+        int[] temp_of = new int[param_slot];
+        Arrays.fill(temp_of, -1);
+        int used_temps = 0;
+        while (!remaining.isEmpty()) {
+            int pick = -1;
+            for (int c = 0; c < remaining.size() && pick < 0; c++) {
+                int k = remaining.get(c);
+                boolean read_later = false;
+                for (int j : remaining) {
+                    if (j != k) {
+                        read_later |= readsArg(body, bounds[j], bounds[j + 1], k + ret_slot);
+                    }
+                }
+                if (!read_later) {
+                    pick = c;
+                }
+                else if (!pure) {
+                    break;
+                }
+            }
+            int k;
+            if (pick >= 0) {
+                k = remaining.remove(pick);
+                code.add(Operation.arga, k + ret_slot);
+            }
+            else {
+                k = remaining.remove(0);
+                temp_of[k] = temp(used_temps++);
+                code.add(Operation.loca, temp_of[k]);
+            }
+            for (int i = bounds[k]; i < bounds[k + 1]; i++) {
+                code.add(body.getOpt(i), body.getNum(i));
+            }
+            code.add(Operation.store64);
+        }
+        for (int k = 0; k < param_slot; k++) {
+            if (temp_of[k] >= 0) {
+                code.add(Operation.arga, k + ret_slot);
+                code.add(Operation.loca, temp_of[k]);
+                code.add(Operation.load64);
+                code.add(Operation.store64);
+            }
+        }
+        // 新的一次调用里没有初始化的局部变量应该是 0
+        for (int slot : function.getUninitializedLocals()) {
+            code.add(Operation.loca, slot);
+            code.add(Operation.push, 0);
+            code.add(Operation.store64);
+        }
+        block.body = code;
+        block.setBranch(Operation.br, entry);
+        block.setNext(null);
+    }
+
+    private int temp(int k) {
+        while (temps.size() <= k) {
+            temps.add(function.getLocalSlot());
+            function.setLocalSlot(function.getLocalSlot() + 1);
+        }
+        return temps.get(k);
+    }
+
+    private static boolean isParamLoad(InstructionBuffer body, int from, int to, int arg) {
+        return to - from == 2 && body.getOpt(from) == Operation.arga && body.getNum(from) == arg
+            && body.getOpt(from + 1) == Operation.load64;
+    }
+
+    // 没有调用、写内存和输入输出，可以和别的参数交换计算顺序
+    private static boolean isPure(InstructionBuffer body, int from, int to) {
+        for (int i = from; i < to; i++) {
+            switch (body.getOpt(i)) {
+                case push:
+                case loca:
+                case arga:
+                case globa:
+                case load64:
+                case add_i:
+                case sub_i:
+                case mul_i:
+                case div_i:
+                case add_f:
+                case sub_f:
+                case mul_f:
+                case div_f:
+                case cmp_i:
+                case cmp_f:
+                case not:
+                case neg_i:
+                case neg_f:
+                case itof:
+                case ftoi:
+                case set_lt:
+                case set_gt:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean readsArg(InstructionBuffer body, int from, int to, int arg) {
+        for (int i = from; i < to; i++) {
+            if (body.getOpt(i) == Operation.arga && body.getNum(i) == arg) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
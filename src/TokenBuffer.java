@@ -0,0 +1,123 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * 紧凑的 token 流，按结构体数组存放
+ * 每个 token 只占 kind(1) + start(4) + end(4) + payload(8) 个字节，不新建 Token 和 Pos
+ * payload 对整数和字符字面量是它的值，对浮点数是 raw bits，对有文本的 token 是字符串池下标
+ * 只有报错的时候才用 toToken 把某一个 token 还原成 Token 对象
+ */
+public class TokenBuffer {
+    private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+    // kind 的最高位表示 payload 是字符串池下标
+    private static final int STRING_PAYLOAD = 0x80;
+
+    byte[] kinds = new byte[256];
+    int[] starts = new int[256];
+    int[] ends = new int[256];
+    long[] payloads = new long[256];
+    int size = 0;
+
+    // 字符串池，同名标识符只存一份
+    List<String> strings = new ArrayList<>();
+    HashMap<String, Integer> string_index = new HashMap<>();
+
+    // 偏移换算成 Pos 用
+    StringIter it;
+
+    public TokenBuffer(StringIter it) {
+        this.it = it;
+    }
+
+    /**
+     * @return 新 token 的下标
+     */
+    public int add(TokenType tt, int start, int end, long num, String text) {
+        if (size == kinds.length) {
+            int capacity = size * 2;
+            kinds = Arrays.copyOf(kinds, capacity);
+            starts = Arrays.copyOf(starts, capacity);
+            ends = Arrays.copyOf(ends, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+        }
+        int kind = tt.ordinal();
+        if (text != null) {
+            kind |= STRING_PAYLOAD;
+            num = internString(text);
+        }
+        kinds[size] = (byte) kind;
+        starts[size] = start;
+        ends[size] = end;
+        payloads[size] = num;
+        return size++;
+    }
+
+    private int internString(String text) {
+        Integer index = string_index.get(text);
+        if (index == null) {
+            index = strings.size();
+            strings.add(text);
+            string_index.put(text, index);
+        }
+        return index;
+    }
+
+    public int size() { return size; }
+
+    public TokenType getTokenType(int i) { return TOKEN_TYPES[kinds[i] & (STRING_PAYLOAD - 1)]; }
+
+    private boolean hasStringPayload(int i) { return (kinds[i] & STRING_PAYLOAD) != 0; }
+
+    /**
+     * 整数或字符字面量的值
+     */
+    public int getInt(int i) { return (int) payloads[i]; }
+
+    /**
+     * 浮点数字面量的值
+     */
+    public double getDouble(int i) { return Double.longBitsToDouble(payloads[i]); }
+
+    /**
+     * 和 Token.getValueString 一致：只有整数、字符串和字符能转成字符串
+     */
+    public String getValueString(int i) {
+        if (hasStringPayload(i)) {
+            return strings.get((int) payloads[i]);
+        }
+        TokenType tt = getTokenType(i);
+        if (tt == TokenType.DOUBLE_LITERAL) {
+            throw new Error("No suitable cast for token value.");
+        }
+        return getValue(i).toString();
+    }
+
+    public Object getValue(int i) {
+        if (hasStringPayload(i)) {
+            return strings.get((int) payloads[i]);
+        }
+        switch (getTokenType(i)) {
+            case UINT_LITERAL:
+            case CHAR_LITERAL:
+                return getInt(i);
+            case DOUBLE_LITERAL:
+                return getDouble(i);
+            default:
+                return (char) payloads[i];
+        }
+    }
+
+    public Pos getStartPos(int i) { return it.posAt(starts[i]); }
+
+    public Pos getEndPos(int i) { return it.posAt(ends[i]); }
+
+    /**
+     * 还原成 Token 对象，只在报错时使用
+     */
+    public Token toToken(int i) {
+        return new Token(getTokenType(i), getValue(i), getStartPos(i), getEndPos(i));
+    }
+}
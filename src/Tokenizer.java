@@ -2,6 +2,15 @@ public class Tokenizer {
 
     private StringIter it;
 
+    // 当前 token 的内容，lex 系列方法只填这几个字段，不新建 Token 和 Pos
+    private TokenType kind;
+    private int startOffset;
+    private int endOffset;
+    // 整数和字符字面量的值，浮点数存 raw bits
+    private long num;
+    // 标识符、关键字、字符串、注释和多字符运算符的文本，其余为 null
+    private String text;
+
     public Tokenizer(StringIter it) {
         this.it = it;
     }
@@ -12,12 +21,31 @@ public class Tokenizer {
      * @throws TokenizeError 如果解析有异常则抛出
      */
     public Token nextToken() throws TokenizeError {
+        lexNext();
+        return new Token(kind, currentValue(), it.posAt(startOffset), it.posAt(endOffset));
+    }
+
+    /**
+     * 获取下一个 token 并直接写进紧凑的 token 流，不新建 Token 对象
+     * @return token 在 buffer 中的下标
+     * @throws TokenizeError 如果解析有异常则抛出
+     */
+    public int nextToken(TokenBuffer buffer) throws TokenizeError {
+        lexNext();
+        return buffer.add(kind, startOffset, endOffset, num, text);
+    }
+
+    public StringIter getIter() {
+        return it;
+    }
+
+    private TokenType lexNext() throws TokenizeError {
         it.readAll();
 
         skipSpaceCharacters();
 
         if (it.isEOF()) {
-            return new Token(TokenType.EOF, "", it.currentPos(), it.currentPos());
+            return makeToken(TokenType.EOF, "", it.currentOffset());
         }
 
         char peek = it.peekChar();
@@ -35,6 +63,48 @@ public class Tokenizer {
         }
     }
 
+    private Object currentValue() {
+        if (text != null) {
+            return text;
+        }
+        switch (kind) {
+            case UINT_LITERAL:
+            case CHAR_LITERAL:
+                return (int) num;
+            case DOUBLE_LITERAL:
+                return Double.longBitsToDouble(num);
+            default:
+                return (char) num;
+        }
+    }
+
+    private TokenType makeToken(TokenType kind, String text, int startOffset) {
+        this.kind = kind;
+        this.text = text;
+        this.num = 0;
+        this.startOffset = startOffset;
+        this.endOffset = it.currentOffset();
+        return kind;
+    }
+
+    private TokenType makeToken(TokenType kind, long num, int startOffset) {
+        this.kind = kind;
+        this.text = null;
+        this.num = num;
+        this.startOffset = startOffset;
+        this.endOffset = it.currentOffset();
+        return kind;
+    }
+
+    // 运算符的起始位置是刚读过的那个字符
+    private TokenType makeOperator(TokenType kind, char a) {
+        return makeToken(kind, a, it.currentOffset() - 1);
+    }
+
+    private TokenType makeOperator(TokenType kind, String text) {
+        return makeToken(kind, text, it.currentOffset() - 1);
+    }
+
     private void lexComment() throws TokenizeError{
         if (it.isEOF()){
             throw new TokenizeError(ErrorCode.EOF, it.currentPos());
@@ -54,13 +124,8 @@ public class Tokenizer {
         }
     }
 
-    private Token lexUIntOrDouble() throws TokenizeError {
-        Pos startPos;
-        try{
-            startPos = it.currentPos();
-        }catch(Error e){
-            throw new TokenizeError(ErrorCode.EOF, it.currentPos());
-        }
+    private TokenType lexUIntOrDouble() throws TokenizeError {
+        int startPos = it.currentOffset();
         if (it.isEOF()){
             throw new TokenizeError(ErrorCode.EOF, it.currentPos());
         }
@@ -73,7 +138,6 @@ public class Tokenizer {
             uint.append(it.nextChar());
             peek = it.peekChar();
         }
-        Token token;
         if (peek == '.'){
             it.nextChar();
             uint.append('.');
@@ -100,32 +164,26 @@ public class Tokenizer {
             }catch(Exception e) {
                 throw new TokenizeError(ErrorCode.InvalidDouble, it.currentPos());
             }
-            token = new Token(TokenType.DOUBLE_LITERAL, num, startPos, it.currentPos());
+            return makeToken(TokenType.DOUBLE_LITERAL, Double.doubleToRawLongBits(num), startPos);
         }
         else{
             int num;
             try{
                 num = Integer.parseInt(uint.toString());
-                token = new Token(TokenType.UINT_LITERAL, num, startPos, it.currentPos());
+                return makeToken(TokenType.UINT_LITERAL, num, startPos);
             }catch(Exception e){
                 try{
                     double double_num = Double.parseDouble(uint.toString());
-                    token = new Token(TokenType.DOUBLE_LITERAL, double_num, startPos, it.currentPos());
+                    return makeToken(TokenType.DOUBLE_LITERAL, Double.doubleToRawLongBits(double_num), startPos);
                 }catch(Exception e1) {
                     throw new TokenizeError(ErrorCode.InvalidDouble, it.currentPos());
                 }
             }
         }
-        return token;
     }
 
-    private Token lexCharLiteral() throws TokenizeError {
-        Pos startPos;
-        try {
-            startPos = it.currentPos();
-        } catch (Error e) {
-            throw new TokenizeError(ErrorCode.EOF, it.currentPos());
-        }
+    private TokenType lexCharLiteral() throws TokenizeError {
+        int startPos = it.currentOffset();
         if (it.isEOF()) {
             throw new TokenizeError(ErrorCode.EOF, it.currentPos());
         }
@@ -173,17 +231,12 @@ public class Tokenizer {
         }
         else{
             it.nextChar();
-            return new Token(TokenType.CHAR_LITERAL, (int)  res, startPos, it.currentPos());
+            return makeToken(TokenType.CHAR_LITERAL, (int) res, startPos);
         }
     }
 
-    private Token lexStringLiteral() throws TokenizeError {
-        Pos startPos;
-        try{
-            startPos = it.currentPos();
-        }catch(Error e){
-            throw new TokenizeError(ErrorCode.EOF, it.currentPos());
-        }
+    private TokenType lexStringLiteral() throws TokenizeError {
+        int startPos = it.currentOffset();
         if (it.isEOF()){
             throw new TokenizeError(ErrorCode.EOF, it.currentPos());
         }
@@ -231,18 +284,13 @@ public class Tokenizer {
         }
         else{
             it.nextChar();
-            return new Token(TokenType.STRING_LITERAL, str.toString(), startPos, it.currentPos());
+            return makeToken(TokenType.STRING_LITERAL, str.toString(), startPos);
         }
     }
 
-    private Token lexIdentOrKeyword() throws TokenizeError {
+    private TokenType lexIdentOrKeyword() throws TokenizeError {
         StringBuilder b = new StringBuilder("");
-        Pos startPos;
-        try{
-            startPos = it.currentPos();
-        }catch(Error e){
-            throw new TokenizeError(ErrorCode.EOF, it.currentPos());
-        }
+        int startPos = it.currentOffset();
         if (it.isEOF()){
             throw new TokenizeError(ErrorCode.EOF, it.currentPos());
         }
@@ -254,42 +302,42 @@ public class Tokenizer {
         }
         String s = b.toString();
         switch (s) {
-            case "fn": return new Token(TokenType.FN_KW, s, startPos, it.currentPos());
-            case "let": return new Token(TokenType.LET_KW, s, startPos, it.currentPos());
-            case "const": return new Token(TokenType.CONST_KW, s, startPos, it.currentPos());
-            case "as": return new Token(TokenType.AS_KW, s, startPos, it.currentPos());
-            case "while": return new Token(TokenType.WHILE_KW, s, startPos, it.currentPos());
-            case "if": return new Token(TokenType.IF_KW, s, startPos, it.currentPos());
-            case "else": return new Token(TokenType.ELSE_KW, s, startPos, it.currentPos());
-            case "return": return new Token(TokenType.RETURN_KW, s, startPos, it.currentPos());
+            case "fn": return makeToken(TokenType.FN_KW, s, startPos);
+            case "let": return makeToken(TokenType.LET_KW, s, startPos);
+            case "const": return makeToken(TokenType.CONST_KW, s, startPos);
+            case "as": return makeToken(TokenType.AS_KW, s, startPos);
+            case "while": return makeToken(TokenType.WHILE_KW, s, startPos);
+            case "if": return makeToken(TokenType.IF_KW, s, startPos);
+            case "else": return makeToken(TokenType.ELSE_KW, s, startPos);
+            case "return": return makeToken(TokenType.RETURN_KW, s, startPos);
             case "int":
-                return new Token(TokenType.INT_KW, s, startPos, it.currentPos());
+                return makeToken(TokenType.INT_KW, s, startPos);
             case "void":
-                return new Token(TokenType.VOID_KW, s, startPos, it.currentPos());
+                return makeToken(TokenType.VOID_KW, s, startPos);
             case "double":
-                return new Token(TokenType.DOUBLE_KW, s, startPos, it.currentPos());
+                return makeToken(TokenType.DOUBLE_KW, s, startPos);
             case "break":
-                return new Token(TokenType.BREAK_KW, s, startPos, it.currentPos());
+                return makeToken(TokenType.BREAK_KW, s, startPos);
             case "continue":
-                return new Token(TokenType.CONTINUE_KW, s, startPos, it.currentPos());
+                return makeToken(TokenType.CONTINUE_KW, s, startPos);
             default:
-                return new Token(TokenType.IDENT, s, startPos, it.currentPos());
+                return makeToken(TokenType.IDENT, s, startPos);
         }
     }
 
-    private Token lexOperatorOrCommentOrUnknown() throws TokenizeError {
+    private TokenType lexOperatorOrCommentOrUnknown() throws TokenizeError {
         char a = it.nextChar();
         switch (a) {
             case '+':
-                return new Token(TokenType.PLUS, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.PLUS, a);
             case '-':
                 if(it.peekChar() == '>'){
                     it.nextChar();
-                    return new Token(TokenType.ARROW, "->", it.previousPos(), it.currentPos());
+                    return makeOperator(TokenType.ARROW, "->");
                 }
-                return new Token(TokenType.MINUS, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.MINUS, a);
             case '*':
-                return new Token(TokenType.MUL, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.MUL, a);
             case '/':
                 if(it.peekChar() == '/'){
                     it.nextChar();
@@ -299,48 +347,48 @@ public class Tokenizer {
                         comment.append(it.nextChar());
                         peek = it.peekChar();
                     }
-                    return new Token(TokenType.COMMENT, "//" + comment.toString(), it.previousPos(), it.currentPos());
+                    return makeOperator(TokenType.COMMENT, "//" + comment.toString());
                 }
-                return new Token(TokenType.DIV, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.DIV, a);
             case '=':
                 if(it.peekChar() == '='){
                     it.nextChar();
-                    return new Token(TokenType.EQ, "==", it.previousPos(), it.currentPos());
+                    return makeOperator(TokenType.EQ, "==");
                 }
-                return new Token(TokenType.ASSIGN, '=', it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.ASSIGN, '=');
             case '!':
                 if(it.peekChar() == '='){
                     it.nextChar();
-                    return new Token(TokenType.NEQ, "!=", it.previousPos(), it.currentPos());
+                    return makeOperator(TokenType.NEQ, "!=");
                 }
             case '<':
                 if(it.peekChar() == '='){
                     it.nextChar();
-                    return new Token(TokenType.LE, "<=", it.previousPos(), it.currentPos());
+                    return makeOperator(TokenType.LE, "<=");
                 }
-                return new Token(TokenType.LT, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.LT, a);
             case '>':
                 if(it.peekChar() == '='){
                     it.nextChar();
-                    return new Token(TokenType.GE, ">=", it.previousPos(), it.currentPos());
+                    return makeOperator(TokenType.GE, ">=");
                 }
-                return new Token(TokenType.GT, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.GT, a);
             case '(':
-                return new Token(TokenType.L_PAREN, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.L_PAREN, a);
             case ')':
-                return new Token(TokenType.R_PAREN, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.R_PAREN, a);
             case '{':
-                return new Token(TokenType.L_BRACE, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.L_BRACE, a);
             case '}':
-                return new Token(TokenType.R_BRACE, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.R_BRACE, a);
             case ',':
-                return new Token(TokenType.COMMA, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.COMMA, a);
             case ':':
-                return new Token(TokenType.COLON, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.COLON, a);
             case ';':
-                return new Token(TokenType.SEMICOLON, a, it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.SEMICOLON, a);
             case 0:
-                return new Token(TokenType.EOF, "", it.previousPos(), it.currentPos());
+                return makeOperator(TokenType.EOF, "");
             default:
                 throw new TokenizeError(ErrorCode.InvalidInput, it.previousPos());
         }